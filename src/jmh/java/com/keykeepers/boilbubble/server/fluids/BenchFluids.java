@@ -0,0 +1,80 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import net.minecraft.fluid.EmptyFluid;
+import net.minecraft.fluid.Fluid;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.fluids.FluidAttributes;
+import net.minecraftforge.fluids.FluidStack;
+import net.minecraftforge.fluids.capability.IFluidHandler.FluidAction;
+import net.minecraftforge.registries.ForgeRegistries;
+import net.minecraftforge.registries.ForgeRegistry;
+
+/**
+ * Stand-in fluids for benchmarks, so they run in a plain JVM with no game client or server. Touching ForgeRegistries
+ * bootstraps the vanilla registries; the stand-ins are then registered directly so that FluidStacks accept them.
+ */
+final class BenchFluids {
+  static final int COUNT = 16;
+  private static final Fluid[] fluids = new Fluid[COUNT];
+
+  static {
+    ForgeRegistry<Fluid> registry = (ForgeRegistry<Fluid>) ForgeRegistries.FLUIDS;
+    registry.unfreeze();
+    for (int i = 0; i < COUNT; i++) {
+      // Spread densities and temperatures so every fluid gets its own layer and layers trade heat.
+      Fluid fluid = new BenchFluid(3000 - i * 150, 280 + i * 10);
+      fluid.setRegistryName(new ResourceLocation("boilbubble_bench", "fluid_" + i));
+      registry.register(fluid);
+      fluids[i] = fluid;
+    }
+    registry.freeze();
+  }
+
+  private BenchFluids() {}
+
+  static Fluid fluid(int index) { return fluids[index]; }
+
+  static FluidStack stack(int index, int amount) { return new FluidStack(fluids[index], amount); }
+
+  /**
+   * A FractionalTank that accepts everything.
+   */
+  static FractionalTank fractionalTank(int tanks, int capacity) {
+    return new FractionalTank(tanks, capacity) {
+      @Override
+      public boolean isFluidValid(int tank, TankAccessType type, FluidStack stack) { return true; }
+    };
+  }
+
+  /**
+   * A ThermalTank holding the given number of layers, split evenly across the capacity and heated toward 400K.
+   */
+  static ThermalTank thermalTank(int layers, int capacity) {
+    ThermalTank tank = new ThermalTank(1, capacity) {
+      @Override
+      public boolean isFluidValid(int tank, TankAccessType type, FluidStack stack) { return true; }
+    };
+    for (int i = 0; i < layers; i++)
+      tank.fill(stack(i, capacity / layers), FluidAction.EXECUTE);
+    tank.targetTemperature(0, 400);
+    return tank;
+  }
+
+  private static class BenchFluid extends EmptyFluid {
+    private final int density;
+    private final int temperature;
+
+    private BenchFluid(int density, int temperature) {
+      this.density = density;
+      this.temperature = temperature;
+    }
+
+    @Override
+    protected FluidAttributes createAttributes() {
+      return FluidAttributes.builder(new ResourceLocation("block/water_still"), new ResourceLocation("block/water_flow"))
+          .density(density)
+          .temperature(temperature)
+          .build(this);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.keykeepers.boilbubble.server.fluids.FractionalTank.TankAccessType;
+import net.minecraftforge.fluids.FluidStack;
+import net.minecraftforge.fluids.capability.IFluidHandler.FluidAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fill, drain and contents() on a FractionalTank holding a given number of layers. Each fill is paired with a drain
+ * of the same amount so the tank stays in the same state from one invocation to the next.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TankBenchmarks {
+  private static final int CAPACITY = 16000;
+  private static final int TRANSFER = 10;
+
+  @Param({"1", "4", "16"})
+  public int layers;
+
+  @Param({"BOTTOM", "TOP"})
+  public TankAccessType access;
+
+  private FractionalTank tank;
+  private FluidStack bottom;
+  private FluidStack top;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    tank = BenchFluids.fractionalTank(1, CAPACITY);
+    // Leave room so fills are never turned away.
+    for (int i = 0; i < layers; i++)
+      tank.fill(BenchFluids.stack(i, CAPACITY / 2 / layers), FluidAction.EXECUTE);
+    bottom = BenchFluids.stack(0, TRANSFER);
+    top = BenchFluids.stack(layers - 1, TRANSFER);
+  }
+
+  private FluidStack edge() { return access == TankAccessType.TOP ? top : bottom; }
+
+  @Benchmark
+  public int fillDrainExecute() {
+    int filled = tank.fill(edge(), access, FluidAction.EXECUTE);
+    return filled + tank.drain(access, TRANSFER, FluidAction.EXECUTE).getAmount();
+  }
+
+  @Benchmark
+  public int fillSimulate() {
+    return tank.fill(edge(), access, FluidAction.SIMULATE);
+  }
+
+  @Benchmark
+  public int drainSimulate() {
+    return tank.drain(access, TRANSFER, FluidAction.SIMULATE).getAmount();
+  }
+
+  @Benchmark
+  public FluidStack drainResourceSimulate() {
+    return tank.drain(access, edge(), FluidAction.SIMULATE);
+  }
+
+  @Benchmark
+  public FluidStack[] contents() {
+    return tank.contents(0);
+  }
+}
@@ -0,0 +1,59 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One tick of processThermal across a number of tanks, each holding a given number of layers. The target temperature
+ * swings every few hundred ticks so that the tanks keep exchanging heat instead of settling into dormancy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThermalBenchmarks {
+  private static final int CAPACITY = 16000;
+  private static final int SWING_TICKS = 256;
+
+  @Param({"1", "4", "16"})
+  public int layers;
+
+  @Param({"1", "64", "1024"})
+  public int tanks;
+
+  private ThermalTank[] thermalTanks;
+  private int ticks;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    thermalTanks = new ThermalTank[tanks];
+    for (int i = 0; i < tanks; i++)
+      thermalTanks[i] = BenchFluids.thermalTank(layers, CAPACITY);
+  }
+
+  @Benchmark
+  public ThermalTank[] processThermal() {
+    if (++ticks % SWING_TICKS == 0) {
+      int target = (ticks / SWING_TICKS) % 2 == 0 ? 400 : 250;
+      for (ThermalTank tank : thermalTanks)
+        tank.targetTemperature(0, target);
+    }
+    for (ThermalTank tank : thermalTanks)
+      tank.processThermal();
+    return thermalTanks;
+  }
+}
@@ -0,0 +1,104 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same workload as ThermalBenchmarks, run directly on the simulation kernel with a plain property table, so it
+ * measures the exchange loop alone and needs no game registries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmarks {
+  private static final int CAPACITY = 16000;
+  private static final int SWING_TICKS = 256;
+  private static final FluidProperties PROPERTIES = new FluidProperties() {
+    @Override
+    public int density(int fluid) { return 3000 - fluid * 100; }
+
+    @Override
+    public int temperature(int fluid) { return 300; }
+
+    @Override
+    public float conductivity(int fluid) { return 1.0f; }
+
+    @Override
+    public float specificHeat(int fluid) { return 1.0f; }
+
+    @Override
+    public int boilingPoint(int fluid) { return Integer.MAX_VALUE; }
+
+    @Override
+    public int freezingPoint(int fluid) { return Integer.MIN_VALUE; }
+
+    @Override
+    public int boilsInto(int fluid) { return -1; }
+
+    @Override
+    public int freezesInto(int fluid) { return -1; }
+
+    @Override
+    public float boilingHeat(int fluid) { return 0; }
+
+    @Override
+    public float freezingHeat(int fluid) { return 0; }
+
+    @Override
+    public int soluteDensity(int solute) { return 1000; }
+
+    @Override
+    public int generation() { return 0; }
+  };
+
+  @Param({"1", "4", "16"})
+  public int layers;
+
+  @Param({"1", "64", "1024"})
+  public int tanks;
+
+  private ThermalKernel[] kernels;
+  private int ticks;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    kernels = new ThermalKernel[tanks];
+    for (int i = 0; i < tanks; i++) {
+      LayerStack stack = new LayerStack(PROPERTIES, CAPACITY);
+      ThermalKernel kernel = new ThermalKernel(stack, 5);
+      stack.observe(kernel);
+      for (int fluid = 0; fluid < layers; fluid++)
+        stack.fill(fluid, CAPACITY / layers, true);
+      kernels[i] = kernel;
+    }
+  }
+
+  @Benchmark
+  public ThermalKernel[] step() {
+    if (++ticks % SWING_TICKS == 0) {
+      int target = (ticks / SWING_TICKS) % 2 == 0 ? 400 : 250;
+      for (ThermalKernel kernel : kernels)
+        kernel.targetTemperature(target);
+    }
+    for (ThermalKernel kernel : kernels) {
+      kernel.step(1);
+      kernel.clearChanged();
+    }
+    return kernels;
+  }
+}
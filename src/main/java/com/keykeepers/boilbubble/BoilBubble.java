@@ -2,6 +2,9 @@ package com.keykeepers.boilbubble;
 
 import com.keykeepers.api.common.Registry;
 import com.keykeepers.api.common.data.TagsProviders;
+import com.keykeepers.boilbubble.common.network.Network;
+import com.keykeepers.boilbubble.server.ServerConfig;
+import com.keykeepers.boilbubble.server.fluids.FluidIds;
 import net.minecraft.block.Blocks;
 import net.minecraft.item.ItemGroup;
 import net.minecraft.item.ItemStack;
@@ -9,13 +12,16 @@ import net.minecraft.item.Items;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.InterModComms;
+import net.minecraftforge.fml.ModLoadingContext;
 import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.config.ModConfig;
 import net.minecraftforge.fml.event.lifecycle.FMLClientSetupEvent;
 import net.minecraftforge.fml.event.lifecycle.FMLCommonSetupEvent;
 import net.minecraftforge.fml.event.lifecycle.InterModEnqueueEvent;
 import net.minecraftforge.fml.event.lifecycle.InterModProcessEvent;
 import net.minecraftforge.fml.event.server.FMLServerStartingEvent;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
+import net.minecraftforge.registries.ForgeRegistries;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -45,6 +51,7 @@ public class BoilBubble {
 
   public BoilBubble() {
     registry.registerBus(FMLJavaModLoadingContext.get().getModEventBus());
+    ModLoadingContext.get().registerConfig(ModConfig.Type.SERVER, ServerConfig.spec);
 
     // Register the setup method for modloading
     FMLJavaModLoadingContext.get().getModEventBus().addListener(this::setup);
@@ -63,6 +70,8 @@ public class BoilBubble {
     // some preinit code
     logger.info("HELLO FROM PREINIT");
     logger.info("DIRT BLOCK >> {}", Blocks.DIRT.getRegistryName());
+    Network.register();
+    FluidIds.assignAll(ForgeRegistries.FLUIDS.getValues());
   }
 
   private void doClientStuff(final FMLClientSetupEvent event) {
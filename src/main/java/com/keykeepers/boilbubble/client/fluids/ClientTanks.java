@@ -0,0 +1,161 @@
+package com.keykeepers.boilbubble.client.fluids;
+
+import com.keykeepers.boilbubble.BoilBubble;
+import com.keykeepers.boilbubble.common.network.TankSyncMessage;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.world.ClientWorld;
+import net.minecraft.fluid.Fluid;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraftforge.api.distmarker.Dist;
+import net.minecraftforge.api.distmarker.OnlyIn;
+import net.minecraftforge.event.world.ChunkEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.registries.ForgeRegistries;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+
+/**
+ * The client's copy of every synced tank holder in the loaded world, kept up to date by {@link TankSyncMessage}s and
+ * read by renderers and screens. Only touched on the client thread.
+ */
+@OnlyIn(Dist.CLIENT)
+@Mod.EventBusSubscriber(modid = BoilBubble.MODID, value = Dist.CLIENT)
+public final class ClientTanks {
+  private static final HashMap<Long, HashMap<BlockPos, Holder>> chunks = new HashMap<>();
+
+  private ClientTanks() {}
+
+  /**
+   * @return The synced state of the tank holder at the position, or null if the server has sent none
+   */
+  @Nullable
+  public static Holder get(BlockPos pos) {
+    HashMap<BlockPos, Holder> holders = chunks.get(ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4));
+    return holders == null ? null : holders.get(pos);
+  }
+
+  public static void apply(TankSyncMessage message) {
+    HashMap<BlockPos, Holder> holders = chunks.get(message.chunk);
+    if (message.reset || holders == null) {
+      holders = new HashMap<>();
+      chunks.put(message.chunk, holders);
+    }
+    PacketBuffer buf = new PacketBuffer(message.payload.duplicate());
+    long now = now();
+    while (buf.isReadable()) {
+      BlockPos pos = BlockPos.fromLong(buf.readLong());
+      byte kind = buf.readByte();
+      if (kind == TankSyncMessage.REMOVED) {
+        holders.remove(pos);
+      } else if (kind == TankSyncMessage.FULL) {
+        Holder holder = new Holder(buf.readVarInt());
+        for (int tank = 0; tank < holder.fluids.length; tank++)
+          holder.readLayers(tank, buf, now);
+        holders.put(pos, holder);
+      } else {
+        Holder holder = holders.get(pos);
+        // Deltas only follow a full entry, so a missing holder means the stream is out of step; stop reading.
+        if (holder == null)
+          return;
+        int changed = buf.readVarInt();
+        for (int i = 0; i < changed; i++) {
+          int tank = buf.readVarInt();
+          if (buf.readByte() == TankSyncMessage.LAYERS)
+            holder.readLayers(tank, buf, now);
+          else
+            holder.readUpdates(tank, buf, now);
+        }
+      }
+    }
+    if (holders.isEmpty())
+      chunks.remove(message.chunk);
+  }
+
+  @SubscribeEvent
+  public static void onChunkUnload(ChunkEvent.Unload event) {
+    if (event.getWorld() != null && event.getWorld().isRemote())
+      chunks.remove(event.getChunk().getPos().asLong());
+  }
+
+  @SubscribeEvent
+  public static void onWorldUnload(WorldEvent.Unload event) {
+    if (event.getWorld().isRemote())
+      chunks.clear();
+  }
+
+  private static long now() {
+    ClientWorld world = Minecraft.getInstance().world;
+    return world == null ? 0 : world.getGameTime();
+  }
+
+  /**
+   * The layers of each tank in one holder, bottom first. Temperatures are carried forward from the last figures the
+   * server sent, so they move smoothly between updates.
+   */
+  public static final class Holder {
+    private final int[] targets;
+    private final Fluid[][] fluids;
+    private final int[][] amounts;
+    private final int[][] temperatures;
+    private final int[][] rates;
+    private final long[][] times;
+
+    private Holder(int tanks) {
+      targets = new int[tanks];
+      fluids = new Fluid[tanks][];
+      amounts = new int[tanks][];
+      temperatures = new int[tanks][];
+      rates = new int[tanks][];
+      times = new long[tanks][];
+    }
+
+    public int tanks() { return fluids.length; }
+
+    public int targetTemperature(int tank) { return targets[tank]; }
+
+    public int layers(int tank) { return fluids[tank].length; }
+
+    public Fluid fluid(int tank, int layer) { return fluids[tank][layer]; }
+
+    public int amount(int tank, int layer) { return amounts[tank][layer]; }
+
+    public int temperature(int tank, int layer) {
+      return TankSyncMessage.extrapolate(temperatures[tank][layer], rates[tank][layer], targets[tank],
+          now() - times[tank][layer]);
+    }
+
+    private void readLayers(int tank, PacketBuffer buf, long now) {
+      targets[tank] = TankSyncMessage.readZigZag(buf);
+      int layers = buf.readVarInt();
+      fluids[tank] = new Fluid[layers];
+      amounts[tank] = new int[layers];
+      temperatures[tank] = new int[layers];
+      rates[tank] = new int[layers];
+      times[tank] = new long[layers];
+      for (int layer = 0; layer < layers; layer++) {
+        fluids[tank][layer] = buf.readRegistryIdUnsafe(ForgeRegistries.FLUIDS);
+        amounts[tank][layer] = buf.readVarInt();
+        temperatures[tank][layer] = TankSyncMessage.readZigZag(buf);
+        rates[tank][layer] = TankSyncMessage.readZigZag(buf);
+        times[tank][layer] = now;
+      }
+    }
+
+    private void readUpdates(int tank, PacketBuffer buf, long now) {
+      targets[tank] += TankSyncMessage.readZigZag(buf);
+      int count = buf.readVarInt();
+      for (int i = 0; i < count; i++) {
+        int layer = buf.readVarInt();
+        amounts[tank][layer] = buf.readVarInt();
+        temperatures[tank][layer] += TankSyncMessage.readZigZag(buf);
+        rates[tank][layer] = TankSyncMessage.readZigZag(buf);
+        times[tank][layer] = now;
+      }
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.keykeepers.boilbubble.common.network;
+
+import com.keykeepers.boilbubble.BoilBubble;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.fml.network.NetworkDirection;
+import net.minecraftforge.fml.network.NetworkRegistry;
+import net.minecraftforge.fml.network.simple.SimpleChannel;
+
+import java.util.Optional;
+
+/**
+ * The mod's network channel. Bump the protocol version whenever a message changes shape, so that mismatched clients
+ * are turned away at login rather than misreading packets.
+ */
+public final class Network {
+  private static final String PROTOCOL = "2";
+
+  public static final SimpleChannel channel = NetworkRegistry.newSimpleChannel(
+      new ResourceLocation(BoilBubble.MODID, "main"), () -> PROTOCOL, PROTOCOL::equals, PROTOCOL::equals);
+
+  private Network() {}
+
+  public static void register() {
+    int id = 0;
+    channel.registerMessage(id++, TankSyncMessage.class, TankSyncMessage::encode, TankSyncMessage::decode,
+        TankSyncMessage::handle, Optional.of(NetworkDirection.PLAY_TO_CLIENT));
+  }
+}
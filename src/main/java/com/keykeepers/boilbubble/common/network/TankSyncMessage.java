@@ -0,0 +1,93 @@
+package com.keykeepers.boilbubble.common.network;
+
+import com.keykeepers.boilbubble.client.fluids.ClientTanks;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketBuffer;
+import net.minecraftforge.api.distmarker.Dist;
+import net.minecraftforge.fml.DistExecutor;
+import net.minecraftforge.fml.network.NetworkEvent;
+
+import java.util.function.Supplier;
+
+/**
+ * Every tank update for one chunk in one tick. The payload is a run of entries, each starting with the tank holder's
+ * position as a long and one of the entry kinds below:
+ *
+ * FULL: varint tank count, then each tank's state.
+ * DELTA: varint count of changed tanks, then for each a varint tank index and a byte: LAYERS followed by the tank's
+ * state when its fluids changed, or UPDATES when only amounts, temperatures or the target did. UPDATES carries a
+ * zigzag varint target change and a varint count of (varint layer, varint amount, zigzag varint temperature change,
+ * zigzag varint rate).
+ * REMOVED: nothing more; the holder is gone.
+ *
+ * A tank's state is its zigzag varint target temperature and a varint layer count, followed by (fluid registry id,
+ * varint amount, zigzag varint temperature, zigzag varint rate) per layer.
+ * When reset is set the client drops everything it holds for the chunk before applying the entries.
+ *
+ * Temperatures are not sent every tick. Each comes with the rate it is changing at, and the client carries it forward
+ * with {@link #extrapolate} until the server sees the client's figure drift too far and sends a correction.
+ */
+public final class TankSyncMessage {
+  public static final byte FULL = 0;
+  public static final byte DELTA = 1;
+  public static final byte REMOVED = 2;
+  public static final byte LAYERS = 0;
+  public static final byte UPDATES = 1;
+  // Rates are sent in 1/RATE_SCALE kelvin per tick.
+  public static final int RATE_SCALE = 1024;
+
+  public final long chunk;
+  public final boolean reset;
+  public final ByteBuf payload;
+
+  public TankSyncMessage(long chunk, boolean reset, ByteBuf payload) {
+    this.chunk = chunk;
+    this.reset = reset;
+    this.payload = payload;
+  }
+
+  public static void encode(TankSyncMessage message, PacketBuffer buf) {
+    buf.writeLong(message.chunk);
+    buf.writeBoolean(message.reset);
+    buf.writeVarInt(message.payload.readableBytes());
+    buf.writeBytes(message.payload, message.payload.readerIndex(), message.payload.readableBytes());
+  }
+
+  public static TankSyncMessage decode(PacketBuffer buf) {
+    long chunk = buf.readLong();
+    boolean reset = buf.readBoolean();
+    // Copied out onto the heap rather than sliced from the pooled packet buffer: the message outlives the packet, as
+    // it is applied later on the client thread, and nothing would release a pooled copy.
+    byte[] payload = new byte[buf.readVarInt()];
+    buf.readBytes(payload);
+    return new TankSyncMessage(chunk, reset, Unpooled.wrappedBuffer(payload));
+  }
+
+  public static void handle(TankSyncMessage message, Supplier<NetworkEvent.Context> context) {
+    context.get().enqueueWork(() -> DistExecutor.unsafeRunWhenOn(Dist.CLIENT, () -> () -> ClientTanks.apply(message)));
+    context.get().setPacketHandled(true);
+  }
+
+  /**
+   * Carries a temperature forward by the given number of ticks at the given rate. A temperature moving toward the
+   * target stops once it gets there. The server runs the same sum to know what each client is showing.
+   */
+  public static int extrapolate(int temperature, int rate, int target, long ticks) {
+    if (rate == 0 || ticks <= 0)
+      return temperature;
+    long result = temperature + rate * ticks / RATE_SCALE;
+    if (rate > 0 && temperature <= target)
+      result = Math.min(result, target);
+    else if (rate < 0 && temperature >= target)
+      result = Math.max(result, target);
+    return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, result));
+  }
+
+  public static void writeZigZag(PacketBuffer buf, int value) { buf.writeVarInt((value << 1) ^ (value >> 31)); }
+
+  public static int readZigZag(PacketBuffer buf) {
+    int value = buf.readVarInt();
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,98 @@
+package com.keykeepers.boilbubble.server;
+
+import com.keykeepers.boilbubble.BoilBubble;
+import com.keykeepers.boilbubble.server.fluids.TankCapabilityProvider;
+import com.keykeepers.boilbubble.server.fluids.ThermalLod;
+import com.keykeepers.boilbubble.server.fluids.ThermalScheduler;
+import com.keykeepers.boilbubble.server.metrics.Metrics;
+import com.keykeepers.boilbubble.server.sync.TankSync;
+import net.minecraftforge.common.ForgeConfigSpec;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.config.ModConfig;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Mod.EventBusSubscriber(modid = BoilBubble.MODID, bus = Mod.EventBusSubscriber.Bus.MOD)
+public class ServerConfig {
+  public static final ForgeConfigSpec spec;
+  public static final ForgeConfigSpec.ConfigValue<List<? extends String>> thermalLodBands;
+  public static final ForgeConfigSpec.IntValue thermalLodFarInterval;
+  public static final ForgeConfigSpec.IntValue thermalTickBudget;
+  public static final ForgeConfigSpec.BooleanValue thermalOffThread;
+  public static final ForgeConfigSpec.BooleanValue metricsEnabled;
+  public static final ForgeConfigSpec.BooleanValue metricsJmx;
+  public static final ForgeConfigSpec.IntValue syncTemperatureTolerance;
+  public static final ForgeConfigSpec.IntValue syncBytesPerTick;
+  public static final ForgeConfigSpec.ConfigValue<List<? extends String>> capabilityTopFaces;
+
+  static {
+    ForgeConfigSpec.Builder builder = new ForgeConfigSpec.Builder();
+
+    builder.comment("Thermal simulation of tanks").push("thermal");
+    thermalLodBands = builder
+        .comment("How often tanks are ticked by distance to the nearest player, as \"distance:interval\".",
+            "A tank within 'distance' blocks of a player is ticked once every 'interval' ticks.")
+        .defineList("lodBands", Arrays.asList("32:1", "64:2", "128:4"),
+            o -> o instanceof String && ThermalLod.isBand((String) o));
+    thermalLodFarInterval = builder
+        .comment("Ticks between updates for tanks farther from every player than any band.")
+        .defineInRange("lodFarInterval", 10, 1, 200);
+    thermalTickBudget = builder
+        .comment("Most time in microseconds each world may spend on tank thermals per tick, counting time on worker",
+            "threads when offThread is on. Tanks left over wait for the next tick and catch up on the time they",
+            "missed. 0 disables the limit.")
+        .defineInRange("tickBudgetMicros", 5000, 0, 50000);
+    thermalOffThread = builder
+        .comment("Compute tank thermals on worker threads from a snapshot taken at the end of each tick, and apply",
+            "the results at the start of the next. Frees the server thread at the cost of one tick of delay.")
+        .define("offThread", true);
+    builder.pop();
+
+    builder.comment("Operational metrics, shown by /boilbubble stats").push("metrics");
+    metricsEnabled = builder
+        .comment("Record counters and timings for tank transfers and thermal ticks. Costs a little time per",
+            "transfer while on.")
+        .define("enabled", false);
+    metricsJmx = builder
+        .comment("Also publish the metrics as an MXBean, for JMX consoles and monitoring agents.")
+        .define("jmx", false);
+    builder.pop();
+
+    builder.comment("Sending tank contents to players").push("sync");
+    syncTemperatureTolerance = builder
+        .comment("Players' clients carry tank temperatures forward between updates. This is how far, in kelvin, their",
+            "figures may drift from the server's before a correction is sent.")
+        .defineInRange("temperatureTolerance", 2, 1, 100);
+    syncBytesPerTick = builder
+        .comment("Most bytes of tank updates sent to each player per tick. Updates left over are sent in later ticks.",
+            "0 disables the limit.")
+        .defineInRange("maxBytesPerTick", 16384, 0, 1048576);
+    builder.pop();
+
+    builder.comment("Tank handlers offered to neighbouring blocks").push("capabilities");
+    capabilityTopFaces = builder
+        .comment("Faces of a tank block, by name, through which neighbours fill and drain at the top of the tank,",
+            "where the lightest fluid sits. Every other face reaches the bottom.")
+        .defineList("topFaces", Collections.singletonList("up"),
+            o -> o instanceof String && TankCapabilityProvider.isFace((String) o));
+    builder.pop();
+
+    spec = builder.build();
+  }
+
+  @SubscribeEvent
+  public static void onConfigChanged(ModConfig.ModConfigEvent event) {
+    if (event.getConfig().getSpec() != spec)
+      return;
+    ThermalLod.configure(thermalLodBands.get(), thermalLodFarInterval.get());
+    ThermalScheduler.configureBudget(TimeUnit.MICROSECONDS.toNanos(thermalTickBudget.get()));
+    ThermalScheduler.configureOffThread(thermalOffThread.get());
+    Metrics.configure(metricsEnabled.get(), metricsJmx.get());
+    TankSync.configure(syncTemperatureTolerance.get(), syncBytesPerTick.get());
+    TankCapabilityProvider.configureTopFaces(capabilityTopFaces.get());
+  }
+}
@@ -0,0 +1,134 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.keykeepers.boilbubble.server.fluids.sim.FluidProperties;
+import net.minecraft.fluid.Fluid;
+import net.minecraft.util.ResourceLocation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out compact integer ids for fluids so that tank layers can be kept in primitive arrays. Every registered
+ * fluid is given an id at common setup, once the registries are frozen, and any fluid seen later gets one then. Ids
+ * stay fixed for the life of the game. They are not stable between sessions and must never be written to disk or sent
+ * over the network.
+ *
+ * The thermal properties of each fluid are served to the simulation from a {@link FluidPropertyTable} through
+ * {@link #properties()}. The table is rebuilt from data by {@link FluidPropertyLoader} on every data reload and
+ * swapped in whole, so readers always see one consistent set of values.
+ */
+public final class FluidIds {
+  private static final ConcurrentHashMap<Fluid, Integer> ids = new ConcurrentHashMap<>();
+  private static volatile Fluid[] fluids = new Fluid[64];
+  private static volatile FluidPropertyTable table = new FluidPropertyTable(0, Collections.emptyMap(), 64);
+  private static volatile int nextId = 0;
+  private static final FluidProperties properties = new FluidProperties() {
+    @Override
+    public int density(int fluid) { return table.densities[fluid]; }
+
+    @Override
+    public int temperature(int fluid) { return table.temperatures[fluid]; }
+
+    @Override
+    public float conductivity(int fluid) { return table.conductivities[fluid]; }
+
+    @Override
+    public float specificHeat(int fluid) { return table.specificHeats[fluid]; }
+
+    @Override
+    public int boilingPoint(int fluid) { return table.boilingPoints[fluid]; }
+
+    @Override
+    public int freezingPoint(int fluid) { return table.freezingPoints[fluid]; }
+
+    @Override
+    public int boilsInto(int fluid) { return table.boilsInto[fluid]; }
+
+    @Override
+    public int freezesInto(int fluid) { return table.freezesInto[fluid]; }
+
+    @Override
+    public float boilingHeat(int fluid) { return table.boilingHeats[fluid]; }
+
+    @Override
+    public float freezingHeat(int fluid) { return table.freezingHeats[fluid]; }
+
+    @Override
+    public int soluteDensity(int solute) { return SoluteIds.density(solute); }
+
+    @Override
+    public int generation() { return table.generation; }
+  };
+
+  private FluidIds() {}
+
+  public static int id(Fluid fluid) {
+    Integer id = ids.get(fluid);
+    if (id != null)
+      return id;
+    return assign(fluid);
+  }
+
+  public static Fluid fluid(int id) { return fluids[id]; }
+
+  public static int count() { return nextId; }
+
+  /**
+   * @return The fluid's id, or -1 if it has none yet
+   */
+  static int assigned(Fluid fluid) {
+    Integer id = ids.get(fluid);
+    return id == null ? -1 : id;
+  }
+
+  public static FluidProperties properties() { return properties; }
+
+  /**
+   * Gives every fluid an id up front, so that the property table covers them all from the start.
+   */
+  public static void assignAll(Iterable<Fluid> registered) {
+    for (Fluid fluid : registered)
+      id(fluid);
+  }
+
+  /**
+   * Replaces the property table with one built from the given data. Layers already in tanks pick up the new values
+   * on their next step.
+   */
+  static synchronized void reload(Map<ResourceLocation, FluidPropertyTable.Entry> entries) {
+    for (FluidPropertyTable.Entry entry : entries.values()) {
+      if (entry.boilsInto != null)
+        id(entry.boilsInto);
+      if (entry.freezesInto != null)
+        id(entry.freezesInto);
+    }
+    FluidPropertyTable current = table;
+    FluidPropertyTable reloaded = new FluidPropertyTable(current.generation + 1, entries, current.capacity());
+    Fluid[] currentFluids = fluids;
+    for (int id = 0; id < nextId; id++)
+      reloaded.fill(id, currentFluids[id]);
+    table = reloaded;
+  }
+
+  private static synchronized int assign(Fluid fluid) {
+    Integer id = ids.get(fluid);
+    if (id != null)
+      return id;
+    int newId = nextId;
+    Fluid[] currentFluids = fluids;
+    FluidPropertyTable currentTable = table;
+    if (newId == currentFluids.length) {
+      currentFluids = Arrays.copyOf(currentFluids, newId * 2);
+      currentTable = currentTable.grow(newId * 2);
+    }
+    currentFluids[newId] = fluid;
+    currentTable.fill(newId, fluid);
+    fluids = currentFluids;
+    table = currentTable;
+    nextId = newId + 1;
+    ids.put(fluid, newId);
+    return newId;
+  }
+}
@@ -0,0 +1,114 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.keykeepers.boilbubble.BoilBubble;
+import net.minecraft.client.resources.JsonReloadListener;
+import net.minecraft.fluid.Fluid;
+import net.minecraft.profiler.IProfiler;
+import net.minecraft.resources.IResourceManager;
+import net.minecraft.util.JSONUtils;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.event.AddReloadListenerEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.registries.ForgeRegistries;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads fluid thermal properties from data packs, one file per fluid named after it:
+ * data/&lt;namespace&gt;/fluid_properties/&lt;path&gt;.json describes the fluid &lt;namespace&gt;:&lt;path&gt;.
+ * Every key is optional:
+ *
+ * density, temperature: override the fluid's attributes.
+ * conductivity, specific_heat: positive numbers, both 1 by default.
+ * boiling_point, boils_into, boiling_heat: above its boiling point the fluid turns into the named fluid, each mB
+ * taking in boiling_heat as it does.
+ * freezing_point, freezes_into, freezing_heat: below its freezing point the fluid turns into the named fluid, each mB
+ * giving out freezing_heat. Gases may say condensing_point, condenses_into and condensing_heat instead.
+ *
+ * A fluid with no point, or nothing to turn into, never changes phase. See
+ * {@link com.keykeepers.boilbubble.server.fluids.sim.ThermalKernel#changePhases} for how a change plays out.
+ *
+ * A file that fails to parse is skipped and logged, and the fluid keeps its defaults.
+ */
+@Mod.EventBusSubscriber(modid = BoilBubble.MODID)
+public final class FluidPropertyLoader extends JsonReloadListener {
+  private static final Gson gson = new GsonBuilder().create();
+  private static final Logger logger = LogManager.getLogger();
+
+  private FluidPropertyLoader() {
+    super(gson, "fluid_properties");
+  }
+
+  @SubscribeEvent
+  public static void onAddReloadListeners(AddReloadListenerEvent event) {
+    event.addListener(new FluidPropertyLoader());
+  }
+
+  @Override
+  protected void apply(Map<ResourceLocation, JsonElement> files, IResourceManager resourceManager, IProfiler profiler) {
+    HashMap<ResourceLocation, FluidPropertyTable.Entry> entries = new HashMap<>();
+    for (Map.Entry<ResourceLocation, JsonElement> file : files.entrySet()) {
+      try {
+        entries.put(file.getKey(), parse(JSONUtils.getJsonObject(file.getValue(), "fluid properties")));
+      } catch (JsonParseException | IllegalArgumentException e) {
+        logger.error("Skipping fluid properties for {}: {}", file.getKey(), e.getMessage());
+      }
+    }
+    FluidIds.reload(entries);
+    logger.debug("Loaded fluid properties for {} fluids", entries.size());
+  }
+
+  private static FluidPropertyTable.Entry parse(JsonObject json) {
+    if (json.has("freezing_point") && json.has("condensing_point"))
+      throw new IllegalArgumentException("give either freezing_point or condensing_point, not both");
+    String lower = json.has("condensing_point") ? "condensing" : "freezing";
+    String lowerInto = json.has("condensing_point") ? "condenses_into" : "freezes_into";
+    Float conductivity = json.has("conductivity") ? JSONUtils.getFloat(json, "conductivity") : null;
+    if (conductivity != null && !(conductivity > 0))
+      throw new IllegalArgumentException("conductivity must be positive");
+    Float specificHeat = json.has("specific_heat") ? JSONUtils.getFloat(json, "specific_heat") : null;
+    if (specificHeat != null && !(specificHeat > 0))
+      throw new IllegalArgumentException("specific_heat must be positive");
+    return new FluidPropertyTable.Entry(
+        json.has("density") ? JSONUtils.getInt(json, "density") : null,
+        json.has("temperature") ? JSONUtils.getInt(json, "temperature") : null,
+        conductivity,
+        specificHeat,
+        json.has("boiling_point") ? JSONUtils.getInt(json, "boiling_point") : null,
+        json.has(lower + "_point") ? JSONUtils.getInt(json, lower + "_point") : null,
+        fluid(json, "boils_into"),
+        fluid(json, lowerInto),
+        heat(json, "boiling_heat"),
+        heat(json, lower + "_heat"));
+  }
+
+  @Nullable
+  private static Fluid fluid(JsonObject json, String key) {
+    if (!json.has(key))
+      return null;
+    ResourceLocation name = new ResourceLocation(JSONUtils.getString(json, key));
+    if (!ForgeRegistries.FLUIDS.containsKey(name))
+      throw new IllegalArgumentException(key + " names unknown fluid " + name);
+    return ForgeRegistries.FLUIDS.getValue(name);
+  }
+
+  @Nullable
+  private static Float heat(JsonObject json, String key) {
+    if (!json.has(key))
+      return null;
+    float heat = JSONUtils.getFloat(json, key);
+    if (!(heat >= 0))
+      throw new IllegalArgumentException(key + " must not be negative");
+    return heat;
+  }
+}
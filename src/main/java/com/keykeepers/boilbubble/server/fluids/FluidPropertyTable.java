@@ -0,0 +1,117 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import net.minecraft.fluid.Fluid;
+import net.minecraft.util.ResourceLocation;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * One complete set of fluid properties, in flat arrays indexed by compact fluid id. Values come from the loaded data
+ * where a fluid has an entry, and from its attributes or the defaults below where it does not.
+ *
+ * A table is never changed once published except to fill in the slot of a newly assigned id, which no reader can
+ * look up until the id itself is published. A data reload builds a new table and {@link FluidIds} swaps it in whole.
+ */
+final class FluidPropertyTable {
+  static final float DEFAULT_CONDUCTIVITY = 1.0f;
+  static final float DEFAULT_SPECIFIC_HEAT = 1.0f;
+
+  final int generation;
+  private final Map<ResourceLocation, Entry> entries;
+  final int[] densities;
+  final int[] temperatures;
+  final float[] conductivities;
+  final float[] specificHeats;
+  final int[] boilingPoints;
+  final int[] freezingPoints;
+  final int[] boilsInto;
+  final int[] freezesInto;
+  final float[] boilingHeats;
+  final float[] freezingHeats;
+
+  FluidPropertyTable(int generation, Map<ResourceLocation, Entry> entries, int capacity) {
+    this.generation = generation;
+    this.entries = entries;
+    densities = new int[capacity];
+    temperatures = new int[capacity];
+    conductivities = new float[capacity];
+    specificHeats = new float[capacity];
+    boilingPoints = new int[capacity];
+    freezingPoints = new int[capacity];
+    boilsInto = new int[capacity];
+    freezesInto = new int[capacity];
+    boilingHeats = new float[capacity];
+    freezingHeats = new float[capacity];
+  }
+
+  private FluidPropertyTable(FluidPropertyTable table, int capacity) {
+    generation = table.generation;
+    entries = table.entries;
+    densities = Arrays.copyOf(table.densities, capacity);
+    temperatures = Arrays.copyOf(table.temperatures, capacity);
+    conductivities = Arrays.copyOf(table.conductivities, capacity);
+    specificHeats = Arrays.copyOf(table.specificHeats, capacity);
+    boilingPoints = Arrays.copyOf(table.boilingPoints, capacity);
+    freezingPoints = Arrays.copyOf(table.freezingPoints, capacity);
+    boilsInto = Arrays.copyOf(table.boilsInto, capacity);
+    freezesInto = Arrays.copyOf(table.freezesInto, capacity);
+    boilingHeats = Arrays.copyOf(table.boilingHeats, capacity);
+    freezingHeats = Arrays.copyOf(table.freezingHeats, capacity);
+  }
+
+  int capacity() { return densities.length; }
+
+  FluidPropertyTable grow(int capacity) { return new FluidPropertyTable(this, capacity); }
+
+  Map<ResourceLocation, Entry> entries() { return entries; }
+
+  /**
+   * Fills in the slot for a fluid. The fluids it turns into must already have ids, or its changes of phase are left
+   * out.
+   */
+  void fill(int id, Fluid fluid) {
+    Entry entry = entries.get(fluid.getRegistryName());
+    densities[id] = entry != null && entry.density != null ? entry.density : fluid.getAttributes().getDensity();
+    temperatures[id] = entry != null && entry.temperature != null
+        ? entry.temperature : fluid.getAttributes().getTemperature();
+    conductivities[id] = entry != null && entry.conductivity != null ? entry.conductivity : DEFAULT_CONDUCTIVITY;
+    specificHeats[id] = entry != null && entry.specificHeat != null ? entry.specificHeat : DEFAULT_SPECIFIC_HEAT;
+    boilingPoints[id] = entry != null && entry.boilingPoint != null ? entry.boilingPoint : Integer.MAX_VALUE;
+    freezingPoints[id] = entry != null && entry.freezingPoint != null ? entry.freezingPoint : Integer.MIN_VALUE;
+    boilsInto[id] = entry != null && entry.boilsInto != null ? FluidIds.assigned(entry.boilsInto) : -1;
+    freezesInto[id] = entry != null && entry.freezesInto != null ? FluidIds.assigned(entry.freezesInto) : -1;
+    boilingHeats[id] = entry != null && entry.boilingHeat != null ? entry.boilingHeat : 0;
+    freezingHeats[id] = entry != null && entry.freezingHeat != null ? entry.freezingHeat : 0;
+  }
+
+  /**
+   * The values given for one fluid in data. Any left null fall back to the fluid's attributes or the defaults.
+   */
+  static final class Entry {
+    final Integer density;
+    final Integer temperature;
+    final Float conductivity;
+    final Float specificHeat;
+    final Integer boilingPoint;
+    final Integer freezingPoint;
+    final Fluid boilsInto;
+    final Fluid freezesInto;
+    final Float boilingHeat;
+    final Float freezingHeat;
+
+    Entry(Integer density, Integer temperature, Float conductivity, Float specificHeat, Integer boilingPoint,
+          Integer freezingPoint, Fluid boilsInto, Fluid freezesInto, Float boilingHeat, Float freezingHeat) {
+      this.density = density;
+      this.temperature = temperature;
+      this.conductivity = conductivity;
+      this.specificHeat = specificHeat;
+      this.boilingPoint = boilingPoint;
+      this.freezingPoint = freezingPoint;
+      this.boilsInto = boilsInto;
+      this.freezesInto = freezesInto;
+      this.boilingHeat = boilingHeat;
+      this.freezingHeat = freezingHeat;
+    }
+  }
+}
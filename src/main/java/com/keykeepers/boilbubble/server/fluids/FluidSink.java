@@ -0,0 +1,48 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.keykeepers.boilbubble.server.fluids.sim.Solutes;
+import net.minecraft.fluid.Fluid;
+import net.minecraft.fluid.Fluids;
+import net.minecraftforge.fluids.FluidStack;
+
+/**
+ * A reusable, mutable result holder for drains. Callers that probe tanks many times per tick keep one sink around and
+ * pass it to {@link FractionalTank#drain(FractionalTank.TankAccessType, int, FluidSink,
+ * net.minecraftforge.fluids.capability.IFluidHandler.FluidAction)} instead of receiving a new FluidStack every call.
+ */
+public final class FluidSink {
+  private Fluid fluid = Fluids.EMPTY;
+  private int amount = 0;
+  private final Solutes solutes = new Solutes();
+
+  public Fluid fluid() { return fluid; }
+
+  public int amount() { return amount; }
+
+  /**
+   * @return What is dissolved in the fluid drained; this is reused for every drain, so callers must not keep or
+   * modify it
+   */
+  public Solutes solutes() { return solutes; }
+
+  public boolean isEmpty() { return amount < 1; }
+
+  public FluidStack toStack() {
+    if (isEmpty())
+      return FluidStack.EMPTY;
+    FluidStack stack = new FluidStack(fluid, amount);
+    SoluteIds.write(solutes, stack);
+    return stack;
+  }
+
+  public void clear() {
+    fluid = Fluids.EMPTY;
+    amount = 0;
+    solutes.clear();
+  }
+
+  void set(Fluid fluid, int amount) {
+    this.fluid = fluid;
+    this.amount = amount;
+  }
+}
@@ -1,13 +1,27 @@
 package com.keykeepers.boilbubble.server.fluids;
 
+import com.keykeepers.boilbubble.server.fluids.sim.LayerStack;
+import com.keykeepers.boilbubble.server.fluids.sim.Solutes;
+import com.keykeepers.boilbubble.server.metrics.FlightEvents;
+import com.keykeepers.boilbubble.server.metrics.Metrics;
 import net.minecraft.fluid.Fluid;
+import net.minecraft.fluid.Fluids;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.nbt.ListNBT;
+import net.minecraft.nbt.StringNBT;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraftforge.common.util.Constants;
+import net.minecraftforge.common.util.INBTSerializable;
 import net.minecraftforge.fluids.FluidAttributes;
 import net.minecraftforge.fluids.FluidStack;
 import net.minecraftforge.fluids.IFluidTank;
 import net.minecraftforge.fluids.capability.IFluidHandler;
+import net.minecraftforge.registries.ForgeRegistries;
 
 import javax.annotation.Nonnull;
-import java.util.TreeMap;
+import javax.annotation.Nullable;
+import java.util.Arrays;
 
 /**
  * A FractionalTank is a module designed to hold one or more fluids, sorted with the heaviest at the
@@ -15,9 +29,20 @@ import java.util.TreeMap;
  * values for its tanks. You may specify one capacity, which will become the maximum for every tank,
  * or you may specify as many capacities as tanks. If no capacity is supplied, the capacity of all
  * tanks are set to the volume of one bucket.
+ *
+ * Fluids may carry dissolved solutes in their stack tags, as described by {@link SoluteIds}. Filling merges them into
+ * the layer of their fluid, and draining hands each stack its share of what the layer holds, so a solution is one
+ * layer of its solvent however many species it holds; see {@link LayerStack}.
  */
-public abstract class FractionalTank implements IFluidHandler {
+public abstract class FractionalTank implements IFluidHandler, INBTSerializable<CompoundNBT> {
+  // Bumped whenever the saved layout changes; older layouts must stay readable.
+  private static final byte FORMAT_VERSION = 2;
+
   private final InternalTank[] tanks;
+  private TankListener[] listeners = new TankListener[0];
+  private BlockPos position;
+  private CompoundNBT saved;
+  private long savedStamp = -1;
 
   public FractionalTank(int tanks, int... capacities) {
     if (tanks < 1)
@@ -37,6 +62,123 @@ public abstract class FractionalTank implements IFluidHandler {
 
   public final FluidStack[] contents(int tank) { return tanks[tank].contents(); }
 
+  /**
+   * @return Where the owner placed these tanks, or null if it never said; used to label diagnostics
+   */
+  @Nullable
+  public final BlockPos position() { return position; }
+
+  public final FractionalTank position(@Nullable BlockPos position) {
+    this.position = position == null ? null : position.toImmutable();
+    return this;
+  }
+
+  /*
+   * Indexed, read-only access to a tank's layers, counted up from the bottom. Unlike contents(), these read straight
+   * from the tank's storage and allocate nothing, so they are the way to walk layers every tick.
+   */
+
+  public final int layers(int tank) { return tanks[tank].layers(); }
+
+  public final Fluid layerFluid(int tank, int layer) { return FluidIds.fluid(tanks[tank].fluid(layer)); }
+
+  public final int layerFluidId(int tank, int layer) { return tanks[tank].fluid(layer); }
+
+  public final int layerAmount(int tank, int layer) { return tanks[tank].amount(layer); }
+
+  /**
+   * @return The temperature of a layer in kelvin. Without a thermal simulation every fluid sits at its default.
+   */
+  public int layerTemperature(int tank, int layer) {
+    return FluidIds.properties().temperature(tanks[tank].fluid(layer));
+  }
+
+  public final TankAccess access(int tank, TankAccessType type) { return tanks[tank].getAccess(type); }
+
+  /**
+   * @return The layer holding the fluid, counted up from the bottom, or -1 if the tank does not hold it
+   */
+  public final int layerOf(int tank, Fluid fluid) { return tanks[tank].indexOf(FluidIds.id(fluid)); }
+
+  /**
+   * Every change to a tank's contents increments its version, so a consumer that remembers the version it last saw
+   * can tell whether it needs to save, sync or redraw anything.
+   */
+  public final long version(int tank) { return tanks[tank].version; }
+
+  public final void addListener(TankListener listener) {
+    TankListener[] current = listeners;
+    TankListener[] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = listener;
+    listeners = updated;
+  }
+
+  public final void removeListener(TankListener listener) {
+    TankListener[] current = listeners;
+    for (int i = 0; i < current.length; i++)
+      if (current[i] == listener) {
+        TankListener[] updated = new TankListener[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, i);
+        System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+        listeners = updated;
+        return;
+      }
+  }
+
+  /**
+   * @return The Forge-independent layer storage behind a tank, for subclasses that simulate on top of it
+   */
+  protected final LayerStack layerStack(int tank) { return tanks[tank].stack; }
+
+  /**
+   * Records a change to a tank and notifies listeners. Subclasses that keep additional per-layer state call this
+   * when that state changes.
+   *
+   * @param tank The tank that changed
+   * @param layers Mask of the layers that changed, as described by {@link TankListener}
+   */
+  protected final void markChanged(int tank, long layers) {
+    tanks[tank].version++;
+    for (TankListener listener : listeners)
+      listener.tankChanged(this, tank, layers);
+  }
+
+  /*
+   * Layer hooks for subclasses that keep their own state aligned with the layer order. They are called while the
+   * tank is being modified, before listeners are notified.
+   */
+
+  /**
+   * Turns some of one fluid in a tank into another, as when it changes phase. The product takes the place of what
+   * was drained, so it always fits, and it is not checked against {@link #isFluidValid}.
+   *
+   * @return The amount converted
+   */
+  protected final int convert(int tank, int fromFluid, int intoFluid, int amount) {
+    return tanks[tank].convert(fromFluid, intoFluid, amount);
+  }
+
+  /**
+   * A new, empty layer has been inserted, shifting every layer at or above it up by one.
+   */
+  protected void layerInserted(int tank, int layer, Fluid fluid) {}
+
+  /**
+   * A layer has been drained away completely, shifting every layer above it down by one.
+   */
+  protected void layerRemoved(int tank, int layer) {}
+
+  /**
+   * A layer's density has changed with what is dissolved in it, and it has moved from one place to another, shifting
+   * the layers between by one toward where it was.
+   */
+  protected void layerMoved(int tank, int from, int to) {}
+
+  /**
+   * The amount held by a layer has changed without the layer being added or removed.
+   */
+  protected void layerResized(int tank, int layer, int oldAmount, int newAmount) {}
+
   @Override
   public final int getTanks() {
     return tanks.length;
@@ -44,10 +186,11 @@ public abstract class FractionalTank implements IFluidHandler {
 
   @Nonnull
   public final FluidStack getFluidStack(int tank, Fluid fluid) {
-    FluidStack stack = tanks[tank].get(fluid);
-    if (stack == null)
+    InternalTank internalTank = tanks[tank];
+    int layer = internalTank.indexOf(FluidIds.id(fluid));
+    if (layer < 0)
       return FluidStack.EMPTY;
-    return stack;
+    return internalTank.stack(layer);
   }
 
   public final FluidStack getFluidInTank(int tank, TankAccessType type) {
@@ -55,12 +198,7 @@ public abstract class FractionalTank implements IFluidHandler {
     return internalTank.getAccess(type).getFluid();
   }
 
-  public final int getFluidAmount(int tank) {
-    int count = 0;
-    for (FluidStack stack : tanks[tank].contents())
-      count += stack.getAmount();
-    return count;
-  }
+  public final int getFluidAmount(int tank) { return tanks[tank].total(); }
 
   @Nonnull
   @Override
@@ -68,7 +206,7 @@ public abstract class FractionalTank implements IFluidHandler {
 
   @Override
   public final int getTankCapacity(int tank) {
-    return tanks[tank].capacity;
+    return tanks[tank].capacity();
   }
 
   public abstract boolean isFluidValid(int tank, TankAccessType type, @Nonnull FluidStack stack);
@@ -79,16 +217,18 @@ public abstract class FractionalTank implements IFluidHandler {
   }
 
   public final int fill(FluidStack resource, TankAccessType type, FluidAction action) {
-    FluidStack excessStack = resource.copy();
-    for (int i = 0; i < tanks.length; i++) {
-      if (!isFluidValid(i, resource))
+    if (resource.isEmpty())
+      return 0;
+    long start = Metrics.start();
+    int remaining = resource.getAmount();
+    Solutes dissolved = SoluteIds.read(resource);
+    for (int i = 0; i < tanks.length && remaining > 0; i++) {
+      if (!isFluidValid(i, type, resource))
         continue;
-      InternalTank tank = tanks[i];
-      excessStack.shrink(tank.getAccess(type).fill(excessStack, action));
-      if (excessStack.getAmount() < 1)
-        break;
+      remaining -= tanks[i].fill(resource.getFluid(), remaining, dissolved, action.execute());
     }
-    return resource.getAmount() - excessStack.getAmount();
+    Metrics.tankFill(action.execute(), start);
+    return resource.getAmount() - remaining;
   }
 
   @Override
@@ -96,19 +236,19 @@ public abstract class FractionalTank implements IFluidHandler {
     return fill(resource, TankAccessType.BOTTOM, action);
   }
 
+  @Nonnull
   public final FluidStack drain(TankAccessType type, FluidStack resource, FluidAction action) {
-    FluidStack remainingStack = resource.copy();
-    for (InternalTank tank : tanks) {
-      FluidStack tankDrainStack = tank.getAccess(type).drain(remainingStack, action);
-      remainingStack.shrink(tankDrainStack.getAmount());
-      if (remainingStack.getAmount() < 1)
-        break;
-    }
-    if (remainingStack.getAmount() < 1)
-      return resource.copy();
-    FluidStack drainStack = resource.copy();
-    drainStack.shrink(remainingStack.getAmount());
-    return drainStack;
+    if (resource.isEmpty())
+      return FluidStack.EMPTY;
+    long start = Metrics.start();
+    Solutes dissolved = new Solutes();
+    int drained = drainFluid(FluidIds.id(resource.getFluid()), resource.getAmount(), dissolved, action.execute());
+    Metrics.tankDrain(action.execute(), start);
+    if (drained < 1)
+      return FluidStack.EMPTY;
+    FluidStack result = new FluidStack(resource, drained);
+    SoluteIds.write(dissolved, result);
+    return result;
   }
 
   @Nonnull
@@ -119,23 +259,16 @@ public abstract class FractionalTank implements IFluidHandler {
 
   @Nonnull
   public final FluidStack drain(TankAccessType type, int maxDrain, FluidAction action) {
-    FluidStack drainStack = null;
-    for (InternalTank tank : tanks) {
-      if (drainStack == null) {
-        drainStack = tank.getAccess(type).drain(maxDrain, action);
-        if (drainStack.equals(FluidStack.EMPTY))
-          drainStack = null;
-      } else if (maxDrain > drainStack.getAmount()) {
-        FluidStack tankDrainStack = drainStack.copy();
-        tankDrainStack.setAmount(maxDrain - drainStack.getAmount());
-        tankDrainStack = tank.getAccess(type).drain(tankDrainStack, action);
-        drainStack.grow(tankDrainStack.getAmount());
-      } else
-        break;
-    }
-    if (drainStack == null)
+    long start = Metrics.start();
+    int fluidId = edgeFluid(type);
+    Solutes dissolved = new Solutes();
+    int drained = fluidId < 0 ? 0 : drainFluid(fluidId, maxDrain, dissolved, action.execute());
+    Metrics.tankDrain(action.execute(), start);
+    if (drained < 1)
       return FluidStack.EMPTY;
-    return drainStack;
+    FluidStack result = new FluidStack(FluidIds.fluid(fluidId), drained);
+    SoluteIds.write(dissolved, result);
+    return result;
   }
 
   @Nonnull
@@ -144,6 +277,572 @@ public abstract class FractionalTank implements IFluidHandler {
     return drain(TankAccessType.BOTTOM, maxDrain, action);
   }
 
+  /**
+   * Drains like {@link #drain(TankAccessType, int, FluidAction)}, but writes the fluid and amount into a reusable sink
+   * rather than allocating a FluidStack for the result.
+   *
+   * @return The amount drained, which is also the amount left in the sink
+   */
+  public final int drain(TankAccessType type, int maxDrain, FluidSink sink, FluidAction action) {
+    long start = Metrics.start();
+    sink.clear();
+    int fluidId = edgeFluid(type);
+    int drained = fluidId < 0 ? 0 : drainFluid(fluidId, maxDrain, sink.solutes(), action.execute());
+    Metrics.tankDrain(action.execute(), start);
+    if (drained < 1)
+      sink.clear();
+    else
+      sink.set(FluidIds.fluid(fluidId), drained);
+    return drained;
+  }
+
+  /**
+   * Drains one fluid, wherever it sits, into a reusable sink.
+   *
+   * @return The amount drained, which is also the amount left in the sink
+   */
+  public final int drain(TankAccessType type, Fluid fluid, int maxDrain, FluidSink sink, FluidAction action) {
+    long start = Metrics.start();
+    sink.clear();
+    int drained = drainFluid(FluidIds.id(fluid), maxDrain, sink.solutes(), action.execute());
+    Metrics.tankDrain(action.execute(), start);
+    if (drained < 1)
+      sink.clear();
+    else
+      sink.set(fluid, drained);
+    return drained;
+  }
+
+  /**
+   * @return How much of the resource could be filled through the given access, without copying the resource
+   */
+  public final int fillable(FluidStack resource, TankAccessType type) {
+    return fill(resource, type, FluidAction.SIMULATE);
+  }
+
+  /**
+   * @return How much of the fluid, up to maxDrain, could be drained through the given access
+   */
+  public final int drainable(TankAccessType type, Fluid fluid, int maxDrain) {
+    long start = Metrics.start();
+    int drainable = drainFluid(FluidIds.id(fluid), maxDrain, null, false);
+    Metrics.tankDrain(false, start);
+    return drainable;
+  }
+
+  /**
+   * @return How much could be drained from whichever fluid sits at the given end of the tanks, up to maxDrain
+   */
+  public final int drainable(TankAccessType type, int maxDrain) {
+    long start = Metrics.start();
+    int fluidId = edgeFluid(type);
+    int drainable = fluidId < 0 ? 0 : drainFluid(fluidId, maxDrain, null, false);
+    Metrics.tankDrain(false, start);
+    return drainable;
+  }
+
+  private int edgeFluid(TankAccessType type) {
+    for (InternalTank tank : tanks)
+      if (tank.layers() > 0)
+        return tank.fluid(tank.edge(type));
+    return -1;
+  }
+
+  private int drainFluid(int fluidId, int maxDrain, @Nullable Solutes dissolved, boolean execute) {
+    int drained = 0;
+    for (int i = 0; i < tanks.length && drained < maxDrain; i++)
+      drained += tanks[i].drain(fluidId, maxDrain - drained, dissolved, execute);
+    return drained;
+  }
+
+  /**
+   * Fills several fluids in a single pass over the internal tanks. Each tank takes as much of each resource as it can,
+   * in the order given, before the next tank is considered.
+   *
+   * @param resources The fluids to fill; none of them are modified
+   * @param accepted Receives the amount of each resource that was (or would be) accepted
+   * @return The accepted array, for convenience
+   */
+  public final int[] fill(FluidStack[] resources, int[] accepted, TankAccessType type, FluidAction action) {
+    if (accepted.length < resources.length)
+      throw new IllegalArgumentException("Accepted array is shorter than the resource array.");
+    long start = Metrics.start();
+    fill(resources, dissolved(resources), accepted, type, action);
+    Metrics.tankFill(action.execute(), start);
+    return accepted;
+  }
+
+  public final int[] fill(FluidStack[] resources, TankAccessType type, FluidAction action) {
+    return fill(resources, new int[resources.length], type, action);
+  }
+
+  /**
+   * @return What is dissolved in each resource, or null if nothing is dissolved in any of them
+   */
+  @Nullable
+  private static Solutes[] dissolved(FluidStack[] resources) {
+    Solutes[] dissolved = null;
+    for (int r = 0; r < resources.length; r++) {
+      Solutes solutes = SoluteIds.read(resources[r]);
+      if (solutes == null)
+        continue;
+      if (dissolved == null)
+        dissolved = new Solutes[resources.length];
+      dissolved[r] = solutes;
+    }
+    return dissolved;
+  }
+
+  /**
+   * @param dissolved What is dissolved in each resource, or null for nothing. When executing, each is left holding
+   * the share of what did not fit.
+   */
+  private int[] fill(FluidStack[] resources, @Nullable Solutes[] dissolved, int[] accepted, TankAccessType type,
+                     FluidAction action) {
+    Arrays.fill(accepted, 0, resources.length, 0);
+    Object event = FlightEvents.beginTransfer();
+    long energy = event == null ? 0 : thermalEnergy();
+    for (int i = 0; i < tanks.length; i++) {
+      InternalTank tank = tanks[i];
+      int free = tank.capacity() - tank.total();
+      for (int r = 0; r < resources.length && free > 0; r++) {
+        FluidStack resource = resources[r];
+        int remaining = resource.getAmount() - accepted[r];
+        if (remaining < 1 || !isFluidValid(i, type, resource))
+          continue;
+        // Offer everything left, since that is what the solutes are dissolved in. A simulated fill leaves the tank as
+        // it was, so cap it by what earlier resources would have taken.
+        int amount = Math.min(free, tank.fill(resource.getFluid(), remaining, dissolved == null ? null : dissolved[r],
+            action.execute()));
+        accepted[r] += amount;
+        free -= amount;
+      }
+    }
+    if (event != null)
+      endTransfer(event, energy, true, action, resources.length, accepted);
+    return accepted;
+  }
+
+  /**
+   * Moves everything the source handler holds into this one in a single pass. Every layer of a FractionalTank source
+   * is offered; any other handler offers the one stack each of its tanks reports. Source tanks are drained only by
+   * the amount this handler accepts, and whatever this handler then turns away is put back.
+   *
+   * @return The amount accepted from each of the source's tanks
+   */
+  public final int[] fillFrom(IFluidHandler source, TankAccessType type, FluidAction action) {
+    long start = Metrics.start();
+    FractionalTank layered = source instanceof FractionalTank ? (FractionalTank) source : null;
+    FluidStack[] resources;
+    int[] owners;
+    if (layered != null) {
+      resources = new FluidStack[layered.totalLayers()];
+      owners = new int[resources.length];
+      int r = 0;
+      for (int i = 0; i < layered.tanks.length; i++)
+        for (int layer = 0; layer < layered.tanks[i].layers(); layer++, r++) {
+          resources[r] = layered.tanks[i].stack(layer);
+          owners[r] = i;
+        }
+    } else {
+      resources = new FluidStack[source.getTanks()];
+      owners = new int[resources.length];
+      for (int i = 0; i < resources.length; i++) {
+        resources[i] = source.getFluidInTank(i);
+        owners[i] = i;
+      }
+    }
+    int[] accepted = fill(resources, dissolved(resources), new int[resources.length], type, FluidAction.SIMULATE);
+    int[] taken = new int[source.getTanks()];
+    if (action.simulate()) {
+      for (int r = 0; r < resources.length; r++)
+        taken[owners[r]] += accepted[r];
+      Metrics.tankFill(false, start);
+      return taken;
+    }
+
+    for (int r = 0; r < resources.length; r++) {
+      if (accepted[r] < 1)
+        resources[r] = FluidStack.EMPTY;
+      else if (layered != null)
+        resources[r] = layered.tanks[owners[r]].take(resources[r].getFluid(), accepted[r]);
+      else
+        resources[r] = source.drain(new FluidStack(resources[r], accepted[r]), FluidAction.EXECUTE);
+    }
+    Solutes[] dissolved = dissolved(resources);
+    fill(resources, dissolved, accepted, type, FluidAction.EXECUTE);
+    for (int r = 0; r < resources.length; r++) {
+      taken[owners[r]] += accepted[r];
+      int shortfall = resources[r].getAmount() - accepted[r];
+      if (shortfall < 1)
+        continue;
+      // Drained but not taken after all; it goes back where it came from, with what is still dissolved in it.
+      FluidStack left = new FluidStack(resources[r].getFluid(), shortfall);
+      SoluteIds.write(dissolved == null ? null : dissolved[r], left);
+      if (layered != null)
+        layered.tanks[owners[r]].fill(left.getFluid(), shortfall, dissolved == null ? null : dissolved[r], true);
+      else
+        source.fill(left, FluidAction.EXECUTE);
+    }
+    Metrics.tankFill(true, start);
+    return taken;
+  }
+
+  /**
+   * Drains several fluids in a single pass over the internal tanks. Only amounts are reported, so whatever is dissolved
+   * in the fluids drained goes with them.
+   *
+   * @param resources The fluids and amounts to drain; none of them are modified
+   * @param drained Receives the amount of each resource that was (or would be) drained
+   * @return The drained array, for convenience
+   */
+  public final int[] drain(TankAccessType type, FluidStack[] resources, int[] drained, FluidAction action) {
+    if (drained.length < resources.length)
+      throw new IllegalArgumentException("Drained array is shorter than the resource array.");
+    long start = Metrics.start();
+    Arrays.fill(drained, 0, resources.length, 0);
+    // Nothing is removed while simulating, so track what each request took from the current tank to keep repeated
+    // requests for the same fluid from counting it twice.
+    int[] taken = action.simulate() ? new int[resources.length] : null;
+    Object event = FlightEvents.beginTransfer();
+    long energy = event == null ? 0 : thermalEnergy();
+    for (InternalTank tank : tanks) {
+      if (tank.layers() == 0)
+        continue;
+      if (taken != null)
+        Arrays.fill(taken, 0);
+      for (int r = 0; r < resources.length; r++) {
+        FluidStack resource = resources[r];
+        int remaining = resource.getAmount() - drained[r];
+        if (remaining < 1)
+          continue;
+        int fluidId = FluidIds.id(resource.getFluid());
+        if (taken != null) {
+          int available = tank.amountOf(fluidId);
+          for (int k = 0; k < r; k++)
+            if (taken[k] > 0 && FluidIds.id(resources[k].getFluid()) == fluidId)
+              available -= taken[k];
+          remaining = Math.min(remaining, available);
+        }
+        int amount = tank.drain(fluidId, remaining, null, action.execute());
+        drained[r] += amount;
+        if (taken != null)
+          taken[r] = amount;
+      }
+    }
+    if (event != null)
+      endTransfer(event, energy, false, action, resources.length, drained);
+    Metrics.tankDrain(action.execute(), start);
+    return drained;
+  }
+
+  @Nonnull
+  public final int[] drain(TankAccessType type, FluidStack[] resources, FluidAction action) {
+    return drain(type, resources, new int[resources.length], action);
+  }
+
+  private void endTransfer(Object event, long energyBefore, boolean fill, FluidAction action, int resources,
+                           int[] moved) {
+    int amount = 0;
+    for (int r = 0; r < resources; r++)
+      amount += moved[r];
+    FlightEvents.endTransfer(event, position, totalLayers(), thermalEnergy() - energyBefore, fill, action.execute(),
+        resources, amount);
+  }
+
+  /**
+   * @return The number of layers across every tank
+   */
+  final int totalLayers() {
+    int layers = 0;
+    for (InternalTank tank : tanks)
+      layers += tank.layers();
+    return layers;
+  }
+
+  /**
+   * @return The thermal energy held across every tank, for diagnostics; tanks without temperatures hold none
+   */
+  long thermalEnergy() { return 0; }
+
+  /**
+   * Moves some of a fluid, with its share of whatever is dissolved in it, from one of this handler's tanks into one of
+   * another's. Only as much as fits is moved, and neither handler's isFluidValid is consulted.
+   *
+   * @return The amount moved
+   */
+  final int moveFluid(int tank, int fluidId, int amount, FractionalTank into, int intoTank) {
+    InternalTank target = into.tanks[intoTank];
+    int movable = Math.min(amount, target.capacity() - target.total());
+    if (movable < 1)
+      return 0;
+    Solutes dissolved = new Solutes();
+    int moved = tanks[tank].drain(fluidId, movable, dissolved, true);
+    target.fill(FluidIds.fluid(fluidId), moved, dissolved, true);
+    return moved;
+  }
+
+  /**
+   * Puts fluid drained from this handler back into it, with whatever is dissolved in it, filling the tanks in order.
+   * Only as much as fits goes in, and isFluidValid is not consulted, since the fluid was here before.
+   *
+   * @param dissolved What is dissolved in the whole amount, or null for nothing; it is left holding the share of what
+   * did not fit
+   * @return The amount put back
+   */
+  final int putBack(Fluid fluid, int amount, @Nullable Solutes dissolved) {
+    int remaining = amount;
+    for (int i = 0; i < tanks.length && remaining > 0; i++)
+      remaining -= tanks[i].fill(fluid, remaining, dissolved, true);
+    return amount - remaining;
+  }
+
+  /**
+   * Saves the share of the contents that goes with one slice of the capacity, as though that slice were a holder of
+   * its own. Each saved layer is cut between offsets into its amount, as worked out by {@link LayerStack#slices}, and
+   * what is dissolved in a layer goes with each cut in proportion. Slices that cut up the same contents between them
+   * add up to them exactly, and none is given more than its capacity holds.
+   *
+   * @param from Where the slice starts, out of the whole capacity
+   * @param to Where the slice ends, out of the whole capacity
+   * @param layersFrom Where the slice starts in each saved layer; saved layers are numbered across all tanks in order
+   * @param layersTo Where the slice ends in each saved layer
+   */
+  final CompoundNBT serializeShare(long from, long to, long whole, int[] layersFrom, int[] layersTo) {
+    CompoundNBT nbt = serializeNBT();
+    int[] amounts = nbt.getIntArray("Amounts");
+    int[] sliced = new int[amounts.length];
+    for (int k = 0; k < amounts.length; k++)
+      sliced[k] = layersTo[k] - layersFrom[k];
+    nbt.putIntArray("Amounts", sliced);
+    if (nbt.contains("SoluteAmounts")) {
+      int[] counts = nbt.getIntArray("SoluteCounts");
+      long[] solutes = nbt.getLongArray("SoluteAmounts");
+      long[] scaled = new long[solutes.length];
+      int e = 0;
+      for (int k = 0; k < counts.length; k++)
+        for (int i = 0; i < counts[k]; i++, e++)
+          scaled[e] = share(solutes[e], layersFrom[k], layersTo[k], amounts[k]);
+      nbt.putLongArray("SoluteAmounts", scaled);
+    }
+    scaleExtra(nbt, from, to, whole, layersFrom, layersTo, amounts);
+    return nbt;
+  }
+
+  /**
+   * Scales subclass state in a compound saved by {@link #serializeShare} down to the share.
+   *
+   * @param amounts The amount saved for each layer, before it was cut
+   */
+  void scaleExtra(CompoundNBT nbt, long from, long to, long whole, int[] layersFrom, int[] layersTo, int[] amounts) {}
+
+  static long[] share(long[] values, long from, long to, long whole) {
+    long[] scaled = new long[values.length];
+    for (int k = 0; k < values.length; k++)
+      scaled[k] = share(values[k], from, to, whole);
+    return scaled;
+  }
+
+  static long share(long value, long from, long to, long whole) {
+    return Math.floorDiv(value * to, whole) - Math.floorDiv(value * from, whole);
+  }
+
+  /**
+   * Saves every tank in a compact form: one palette of fluid registry names for the whole holder, and the layers of
+   * all tanks packed into flat int arrays of palette indices and amounts. Solutes are packed the same way alongside.
+   *
+   * Saving tanks that have not changed since the last save copies the compound built then instead of building it
+   * again. Each call returns a compound of its own, which the caller is free to add to.
+   */
+  @Override
+  public final CompoundNBT serializeNBT() {
+    long stamp = changeStamp();
+    if (saved != null && stamp == savedStamp)
+      return saved.copy();
+    Object event = FlightEvents.beginSerialization();
+
+    int total = totalLayers();
+    int[] counts = new int[tanks.length];
+    int[] indices = new int[total];
+    int[] amounts = new int[total];
+    int[] paletteIds = new int[Math.min(total, 8)];
+    ListNBT palette = new ListNBT();
+    int k = 0;
+    for (int i = 0; i < tanks.length; i++) {
+      InternalTank tank = tanks[i];
+      counts[i] = tank.layers();
+      for (int layer = 0; layer < counts[i]; layer++, k++) {
+        int fluidId = tank.fluid(layer);
+        int index = 0;
+        while (index < palette.size() && paletteIds[index] != fluidId)
+          index++;
+        if (index == palette.size()) {
+          if (index == paletteIds.length)
+            paletteIds = Arrays.copyOf(paletteIds, index * 2);
+          paletteIds[index] = fluidId;
+          palette.add(StringNBT.valueOf(FluidIds.fluid(fluidId).getRegistryName().toString()));
+        }
+        indices[k] = index;
+        amounts[k] = tank.amount(layer);
+      }
+    }
+
+    CompoundNBT nbt = new CompoundNBT();
+    nbt.putByte("Version", FORMAT_VERSION);
+    nbt.put("Palette", palette);
+    nbt.putIntArray("Layers", counts);
+    nbt.putIntArray("Fluids", indices);
+    nbt.putIntArray("Amounts", amounts);
+    writeSolutes(nbt, total);
+    writeExtra(nbt);
+    saved = nbt;
+    savedStamp = stamp;
+    FlightEvents.endSerialization(event, position, total, thermalEnergy(), true);
+    return nbt.copy();
+  }
+
+  /**
+   * Saves what is dissolved in the layers, if anything is, packed like the layers themselves: a palette of solute
+   * names, the number of solutes in each saved layer, and flat arrays of palette indices and amounts.
+   */
+  private void writeSolutes(CompoundNBT nbt, int total) {
+    int[] counts = null;
+    int entries = 0;
+    int k = 0;
+    for (InternalTank tank : tanks)
+      for (int layer = 0; layer < tank.layers(); layer++, k++) {
+        Solutes solutes = tank.solutes(layer);
+        if (solutes == null || solutes.isEmpty())
+          continue;
+        if (counts == null)
+          counts = new int[total];
+        counts[k] = solutes.size();
+        entries += solutes.size();
+      }
+    if (counts == null)
+      return;
+
+    int[] indices = new int[entries];
+    long[] amounts = new long[entries];
+    int[] paletteIds = new int[Math.min(entries, 8)];
+    ListNBT palette = new ListNBT();
+    int e = 0;
+    k = 0;
+    for (InternalTank tank : tanks)
+      for (int layer = 0; layer < tank.layers(); layer++, k++) {
+        if (counts[k] == 0)
+          continue;
+        Solutes solutes = tank.solutes(layer);
+        for (int i = 0; i < solutes.size(); i++, e++) {
+          int soluteId = solutes.id(i);
+          int index = 0;
+          while (index < palette.size() && paletteIds[index] != soluteId)
+            index++;
+          if (index == palette.size()) {
+            if (index == paletteIds.length)
+              paletteIds = Arrays.copyOf(paletteIds, index * 2);
+            paletteIds[index] = soluteId;
+            palette.add(StringNBT.valueOf(SoluteIds.name(soluteId).toString()));
+          }
+          indices[e] = index;
+          amounts[e] = solutes.amount(i);
+        }
+      }
+    nbt.put("SolutePalette", palette);
+    nbt.putIntArray("SoluteCounts", counts);
+    nbt.putIntArray("Solutes", indices);
+    nbt.putLongArray("SoluteAmounts", amounts);
+  }
+
+  /**
+   * Replaces the contents of every tank with what {@link #serializeNBT()} saved. Fluids that are no longer registered
+   * are dropped, and layers that no longer fit are cut short. Listeners and subclass hooks see the old layers drained
+   * and the saved ones filled.
+   */
+  @Override
+  public final void deserializeNBT(CompoundNBT nbt) {
+    byte version = nbt.getByte("Version");
+    if (version > FORMAT_VERSION)
+      throw new IllegalArgumentException("Tank data is in format " + version + ", newer than this version can read.");
+    Object event = FlightEvents.beginSerialization();
+
+    ListNBT names = nbt.getList("Palette", Constants.NBT.TAG_STRING);
+    Fluid[] palette = new Fluid[names.size()];
+    for (int i = 0; i < palette.length; i++) {
+      Fluid fluid = ForgeRegistries.FLUIDS.getValue(new ResourceLocation(names.getString(i)));
+      palette[i] = fluid == null ? Fluids.EMPTY : fluid;
+    }
+    int[] counts = nbt.getIntArray("Layers");
+    int[] indices = nbt.getIntArray("Fluids");
+    int[] amounts = nbt.getIntArray("Amounts");
+    ListNBT soluteNames = nbt.getList("SolutePalette", Constants.NBT.TAG_STRING);
+    int[] solutePalette = new int[soluteNames.size()];
+    for (int i = 0; i < solutePalette.length; i++) {
+      ResourceLocation name = ResourceLocation.tryCreate(soluteNames.getString(i));
+      solutePalette[i] = name == null ? -1 : SoluteIds.id(name);
+    }
+    int[] soluteCounts = nbt.getIntArray("SoluteCounts");
+    int[] soluteIndices = nbt.getIntArray("Solutes");
+    long[] soluteAmounts = nbt.getLongArray("SoluteAmounts");
+    Solutes dissolved = new Solutes();
+
+    int[] placed = new int[indices.length];
+    Arrays.fill(placed, -1);
+    int k = 0;
+    int e = 0;
+    for (int i = 0; i < tanks.length; i++) {
+      InternalTank tank = tanks[i];
+      tank.clear();
+      int count = i < counts.length ? counts[i] : 0;
+      for (int layer = 0; layer < count && k < indices.length; layer++, k++) {
+        dissolved.clear();
+        int end = e + (k < soluteCounts.length ? soluteCounts[k] : 0);
+        for (; e < end && e < soluteIndices.length && e < soluteAmounts.length; e++) {
+          int solute = soluteIndices[e];
+          if (solute >= 0 && solute < solutePalette.length && solutePalette[solute] >= 0 && soluteAmounts[e] > 0)
+            dissolved.add(solutePalette[solute], soluteAmounts[e]);
+        }
+        int index = indices[k];
+        if (index < 0 || index >= palette.length || palette[index] == Fluids.EMPTY || k >= amounts.length)
+          continue;
+        tank.fill(palette[index], amounts[k], dissolved, true);
+      }
+    }
+    // A dropped fluid shifts the layers above it, so look up where each saved layer ended up.
+    k = 0;
+    for (int i = 0; i < tanks.length && i < counts.length; i++)
+      for (int layer = 0; layer < counts[i] && k < indices.length; layer++, k++) {
+        int index = indices[k];
+        if (index >= 0 && index < palette.length && palette[index] != Fluids.EMPTY)
+          placed[k] = tanks[i].indexOf(FluidIds.id(palette[index]));
+      }
+    readExtra(nbt, counts, placed);
+    saved = null;
+    savedStamp = -1;
+    FlightEvents.endSerialization(event, position, totalLayers(), thermalEnergy(), false);
+  }
+
+  /**
+   * Adds subclass state to a compound being saved.
+   */
+  protected void writeExtra(CompoundNBT nbt) {}
+
+  /**
+   * Restores subclass state once the saved layers have been filled back in.
+   *
+   * @param counts The number of layers saved for each tank; saved layers are numbered across all tanks in order
+   * @param placed For each saved layer, the layer it was restored to in its tank, or -1 if it was dropped
+   */
+  protected void readExtra(CompoundNBT nbt, int[] counts, int[] placed) {}
+
+  final long changeStamp() {
+    // Versions only ever go up, so their sum changes whenever any one of them does.
+    long stamp = 0;
+    for (InternalTank tank : tanks)
+      stamp += tank.version;
+    return stamp;
+  }
+
   public enum TankAccessType {
     BOTTOM,
     TOP
@@ -164,32 +863,31 @@ public abstract class FractionalTank implements IFluidHandler {
 
     public final FluidStack[] contents() { return tanks[id].contents(); }
 
+    public final int layers() { return tanks[id].layers(); }
+
+    public final Fluid layerFluid(int layer) { return FluidIds.fluid(tanks[id].fluid(layer)); }
+
+    public final int layerAmount(int layer) { return tanks[id].amount(layer); }
+
     protected final InternalTank tank() { return tanks[id]; }
 
     @Nonnull
     @Override
     public final FluidStack getFluid() {
-      if (tank().isEmpty())
+      InternalTank tank = tank();
+      if (tank.layers() == 0)
         return FluidStack.EMPTY;
-
-      FluidStack[] contents = tank().contents();
-      if (type == TankAccessType.TOP)
-        return contents[contents.length - 1];
-      else
-        return contents[0];
+      return tank.stack(tank.edge(type));
     }
 
     @Override
     public final int getFluidAmount() {
-      int amount = 0;
-      for (FluidStack stack : tank().values())
-        amount += stack.getAmount();
-      return amount;
+      return tank().total();
     }
 
     @Override
     public final int getCapacity() {
-      return tank().capacity;
+      return tank().capacity();
     }
 
     /**
@@ -205,78 +903,169 @@ public abstract class FractionalTank implements IFluidHandler {
 
     @Override
     public final int fill(FluidStack resource, IFluidHandler.FluidAction action) {
-      int availVolume = getCapacity() - getFluidAmount();
-      if (availVolume < 1)
+      if (resource.isEmpty())
         return 0;
-      int fillAmount = Math.min(resource.getAmount(), availVolume);
-      if (action.execute())
-        if (tank().containsKey(resource.getFluid())) {
-          FluidStack tankStack = tank().get(resource.getFluid());
-          tankStack.grow(fillAmount);
-        }
-        else {
-          FluidStack newStack = resource.copy();
-          newStack.setAmount(fillAmount);
-          tank().put(newStack.getFluid(), newStack);
-        }
-      return fillAmount;
+      long start = Metrics.start();
+      int filled = tank().fill(resource.getFluid(), resource.getAmount(), SoluteIds.read(resource), action.execute());
+      Metrics.tankFill(action.execute(), start);
+      return filled;
     }
 
     @Nonnull
     @Override
     public final FluidStack drain(int maxDrain, IFluidHandler.FluidAction action) {
-      if (tank().isEmpty())
+      InternalTank tank = tank();
+      if (tank.layers() == 0 || maxDrain < 1)
         return FluidStack.EMPTY;
-      FluidStack tankStack = tank().values().iterator().next();
-      FluidStack drainStack = tankStack.copy();
-      if (tankStack.getAmount() > maxDrain)
-        drainStack.setAmount(maxDrain);
-      if (action.execute()) {
-        if (tankStack.getAmount() > maxDrain)
-          tankStack.shrink(maxDrain);
-        else
-          tank().remove(tankStack.getFluid());
-      }
-      return drainStack;
+      long start = Metrics.start();
+      int fluidId = tank.fluid(tank.edge(type));
+      Solutes dissolved = new Solutes();
+      int drained = tank.drain(fluidId, maxDrain, dissolved, action.execute());
+      Metrics.tankDrain(action.execute(), start);
+      FluidStack result = new FluidStack(FluidIds.fluid(fluidId), drained);
+      SoluteIds.write(dissolved, result);
+      return result;
     }
 
     @Nonnull
     @Override
     public final FluidStack drain(FluidStack resource, IFluidHandler.FluidAction action) {
-      if (!tank().containsKey(resource.getFluid()))
+      if (resource.isEmpty())
         return FluidStack.EMPTY;
-      FluidStack tankStack = tank().get(resource.getFluid());
-      FluidStack drainStack = resource.copy();
-      if (drainStack.getAmount() > tankStack.getAmount())
-        drainStack.setAmount(tankStack.getAmount());
-      if (action.execute()) {
-        if (tankStack.getAmount() > drainStack.getAmount())
-          tankStack.shrink(drainStack.getAmount());
-        else
-          tank().remove(tankStack.getFluid());
-      }
-      return drainStack;
+      long start = Metrics.start();
+      Solutes dissolved = new Solutes();
+      int drained = tank().drain(FluidIds.id(resource.getFluid()), resource.getAmount(), dissolved, action.execute());
+      Metrics.tankDrain(action.execute(), start);
+      if (drained < 1)
+        return FluidStack.EMPTY;
+      FluidStack result = new FluidStack(resource, drained);
+      SoluteIds.write(dissolved, result);
+      return result;
     }
   }
 
-  private class InternalTank extends TreeMap<Fluid, FluidStack> {
+  /**
+   * Binds one tank's {@link LayerStack} to this handler: it turns layer changes into the subclass hooks and listener
+   * notifications, and holds the tank's reusable access views.
+   */
+  private class InternalTank implements LayerStack.Observer {
     private final int id;
-    private final int capacity;
+    private final LayerStack stack;
+    private final TankAccess bottom;
+    private final TankAccess top;
+    private long version = 0;
+    private long changed = 0;
 
     private InternalTank(int id, int capacity) {
-      super((o1, o2) -> Integer.compare(o2.getAttributes().getDensity(), o1.getAttributes().getDensity()));
       this.id = id;
       if (capacity < 1)
         throw new IllegalArgumentException("Capacity on tank " + id + " is not a positive value");
-      this.capacity = capacity;
+      stack = new LayerStack(FluidIds.properties(), capacity);
+      stack.observe(this);
+      bottom = new TankAccess(id, TankAccessType.BOTTOM);
+      top = new TankAccess(id, TankAccessType.TOP);
+    }
+
+    private int layers() { return stack.layers(); }
+
+    private int total() { return stack.total(); }
+
+    private int capacity() { return stack.capacity(); }
+
+    private int fluid(int layer) { return stack.fluid(layer); }
+
+    private int amount(int layer) { return stack.amount(layer); }
+
+    private int indexOf(int fluidId) { return stack.indexOf(fluidId); }
+
+    private int amountOf(int fluidId) { return stack.amountOf(fluidId); }
+
+    @Nullable
+    private Solutes solutes(int layer) { return stack.solutes(layer); }
+
+    private int edge(TankAccessType type) { return type == TankAccessType.TOP ? stack.layers() - 1 : 0; }
+
+    private FluidStack stack(int layer) {
+      FluidStack fluidStack = new FluidStack(FluidIds.fluid(stack.fluid(layer)), stack.amount(layer));
+      SoluteIds.write(stack.solutes(layer), fluidStack);
+      return fluidStack;
+    }
+
+    private FluidStack[] contents() {
+      FluidStack[] contents = new FluidStack[stack.layers()];
+      for (int i = 0; i < contents.length; i++)
+        contents[i] = stack(i);
+      return contents;
     }
 
-    private final FluidStack[] contents() {
-      return values().toArray(new FluidStack[0]);
+    private int fill(Fluid fluid, int amount, @Nullable Solutes dissolved, boolean execute) {
+      return execute
+          ? publish(stack.fill(FluidIds.id(fluid), amount, dissolved, true))
+          : Math.max(0, Math.min(amount, stack.capacity() - stack.total()));
+    }
+
+    private int drain(int fluidId, int amount, @Nullable Solutes dissolved, boolean execute) {
+      return execute
+          ? publish(stack.drain(fluidId, amount, dissolved, true))
+          : stack.drain(fluidId, amount, dissolved, false);
+    }
+
+    /**
+     * Drains some of a fluid for good, as a stack carrying its share of what is dissolved in the layer.
+     */
+    private FluidStack take(Fluid fluid, int amount) {
+      Solutes dissolved = new Solutes();
+      FluidStack taken = new FluidStack(fluid, drain(FluidIds.id(fluid), amount, dissolved, true));
+      SoluteIds.write(dissolved, taken);
+      return taken;
+    }
+
+    private int convert(int fromFluid, int intoFluid, int amount) {
+      return publish(stack.convert(fromFluid, intoFluid, amount));
+    }
+
+    private int publish(int moved) {
+      if (changed != 0) {
+        long layers = changed;
+        changed = 0;
+        markChanged(id, layers);
+      }
+      return moved;
+    }
+
+    @Override
+    public void inserted(int layer) {
+      layerInserted(id, layer, FluidIds.fluid(stack.fluid(layer)));
+      changed |= LayerStack.layersFrom(layer);
+    }
+
+    @Override
+    public void removed(int layer) {
+      layerRemoved(id, layer);
+      changed |= LayerStack.layersFrom(layer);
+    }
+
+    @Override
+    public void resized(int layer, int oldAmount, int newAmount) {
+      layerResized(id, layer, oldAmount, newAmount);
+      changed |= LayerStack.layerBit(layer);
+    }
+
+    @Override
+    public void moved(int from, int to) {
+      layerMoved(id, from, to);
+      changed |= LayerStack.layersFrom(Math.min(from, to));
+    }
+
+    private void clear() {
+      while (stack.layers() > 0) {
+        int top = stack.layers() - 1;
+        drain(stack.fluid(top), stack.amount(top), null, true);
+      }
     }
 
     private TankAccess getAccess(TankAccessType type) {
-      return new TankAccess(id, type);
+      return type == TankAccessType.TOP ? top : bottom;
     }
   }
 }
@@ -0,0 +1,417 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.keykeepers.boilbubble.BoilBubble;
+import com.keykeepers.boilbubble.server.fluids.FractionalTank.TankAccessType;
+import com.keykeepers.boilbubble.server.fluids.sim.Solutes;
+import com.keykeepers.boilbubble.server.metrics.Histogram;
+import com.keykeepers.boilbubble.server.metrics.Metrics;
+import net.minecraft.fluid.Fluid;
+import net.minecraft.util.Direction;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.IWorld;
+import net.minecraft.world.World;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fluids.FluidStack;
+import net.minecraftforge.fluids.capability.IFluidHandler.FluidAction;
+import net.minecraftforge.fml.common.Mod;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Moves fluid between tanks joined by pipes, solving every network once per tick rather than leaving each pipe to
+ * poll its neighbours. Owners add each pipe block when it is loaded or placed and remove it when it is unloaded or
+ * broken, and connect a port on a pipe's face for every tank it touches. Pipes that touch make up one network.
+ *
+ * A port either extracts from its tank or inserts into it, up to a rate per tick, through one end of the tank: an
+ * extracting port offers whichever fluid sits at that end, so a port at the top draws off the light fractions and one
+ * at the bottom the heavy ones.
+ *
+ * Networks are found when the pipes or ports change, and kept until they change again. Each tick, every network takes
+ * what its extracting ports offer and what its inserting ports will accept, and moves as much of each fluid as both
+ * sides allow in one pass, sharing it out in proportion to each port's offer or demand. No port goes before another,
+ * so the result does not depend on the order the blocks tick in. Solutes travel with their fluid, pooled across the
+ * ports it came from.
+ */
+@Mod.EventBusSubscriber(modid = BoilBubble.MODID)
+public final class PipeNetworks {
+  private static final HashMap<IWorld, PipeNetworks> worlds = new HashMap<>();
+
+  private final String metricPrefix;
+  private final Histogram solveNanos;
+  private final LongAdder movedMb;
+  private final AtomicLong networksGauge;
+  private final HashMap<BlockPos, Pipe> pipes = new HashMap<>();
+  private final ArrayList<Network> networks = new ArrayList<>();
+  // Set when pipes or ports change, so the networks are found again before the next solve.
+  private boolean dirty = false;
+  private int walk = 0;
+  private long tick = 0;
+
+  private PipeNetworks(World world) {
+    metricPrefix = "pipes." + world.getDimensionKey().getLocation() + ".";
+    solveNanos = Metrics.histogram(metricPrefix + "solve.nanos");
+    movedMb = Metrics.counter(metricPrefix + "moved.mb");
+    networksGauge = Metrics.gauge(metricPrefix + "networks");
+  }
+
+  public static void addPipe(World world, BlockPos pos) {
+    PipeNetworks pipes = worlds.computeIfAbsent(world, w -> new PipeNetworks(world));
+    if (pipes.pipes.putIfAbsent(pos.toImmutable(), new Pipe(pos.toImmutable())) == null)
+      pipes.dirty = true;
+  }
+
+  /**
+   * Removes a pipe along with every port on it.
+   */
+  public static void removePipe(World world, BlockPos pos) {
+    PipeNetworks pipes = worlds.get(world);
+    if (pipes != null && pipes.pipes.remove(pos) != null)
+      pipes.dirty = true;
+  }
+
+  /**
+   * Connects a tank to a face of a pipe, replacing whatever port was on that face.
+   *
+   * @param tank Gives the tank to use each tick, for holders whose tank is replaced, like {@link TankPool#tank()};
+   * while it gives null, the port takes no part
+   * @param access The end of the tank the port draws from or fills through
+   * @param rate The most the port moves per tick, in mB
+   */
+  public static void connect(World world, BlockPos pipe, Direction side, Supplier<? extends FractionalTank> tank,
+                             TankAccessType access, Mode mode, int rate) {
+    if (rate < 1)
+      throw new IllegalArgumentException("Rate must be a positive value");
+    PipeNetworks pipes = worlds.get(world);
+    Pipe target = pipes == null ? null : pipes.pipes.get(pipe);
+    if (target == null)
+      throw new IllegalStateException("There is no pipe at " + pipe + ".");
+    target.ports[side.ordinal()] = new Port(target.pos, side, tank, access, mode, rate);
+    pipes.dirty = true;
+  }
+
+  public static void connect(World world, BlockPos pipe, Direction side, FractionalTank tank, TankAccessType access,
+                             Mode mode, int rate) {
+    connect(world, pipe, side, () -> tank, access, mode, rate);
+  }
+
+  public static void disconnect(World world, BlockPos pipe, Direction side) {
+    PipeNetworks pipes = worlds.get(world);
+    Pipe target = pipes == null ? null : pipes.pipes.get(pipe);
+    if (target == null || target.ports[side.ordinal()] == null)
+      return;
+    target.ports[side.ordinal()] = null;
+    pipes.dirty = true;
+  }
+
+  /**
+   * @return The number of networks in the world with ports both to extract and to insert, which are all that get
+   * solved
+   */
+  public static int networks(World world) {
+    PipeNetworks pipes = worlds.get(world);
+    if (pipes == null)
+      return 0;
+    if (pipes.dirty)
+      pipes.rebuild();
+    return pipes.networks.size();
+  }
+
+  @SubscribeEvent
+  public static void onWorldTick(TickEvent.WorldTickEvent event) {
+    if (event.phase != TickEvent.Phase.START || event.world.isRemote)
+      return;
+    PipeNetworks pipes = worlds.get(event.world);
+    if (pipes == null)
+      return;
+    long start = Metrics.start();
+    if (pipes.dirty)
+      pipes.rebuild();
+    long moved = 0;
+    for (Network network : pipes.networks)
+      moved += network.solve(pipes.tick);
+    pipes.tick++;
+    if (start != 0) {
+      pipes.solveNanos.record(System.nanoTime() - start);
+      pipes.movedMb.add(moved);
+      pipes.networksGauge.set(pipes.networks.size());
+    }
+  }
+
+  @SubscribeEvent
+  public static void onWorldUnload(WorldEvent.Unload event) {
+    PipeNetworks pipes = worlds.remove(event.getWorld());
+    if (pipes != null)
+      Metrics.remove(pipes.metricPrefix);
+  }
+
+  /**
+   * Finds the networks again by walking the pipes breadth-first. Ports are kept in order of position and face, and
+   * networks in order of their first pipe, so the solve comes out the same however the pipes were added.
+   */
+  private void rebuild() {
+    dirty = false;
+    networks.clear();
+    walk++;
+    Comparator<Port> byPosition = Comparator.<Port>comparingLong(port -> port.pipe.toLong())
+        .thenComparing(port -> port.side);
+    for (Pipe start : pipes.values()) {
+      if (start.walk == walk)
+        continue;
+      ArrayList<Port> sources = new ArrayList<>();
+      ArrayList<Port> sinks = new ArrayList<>();
+      long first = start.pos.toLong();
+      ArrayDeque<Pipe> queue = new ArrayDeque<>();
+      start.walk = walk;
+      queue.add(start);
+      while (!queue.isEmpty()) {
+        Pipe pipe = queue.poll();
+        first = Math.min(first, pipe.pos.toLong());
+        for (Direction direction : Direction.values()) {
+          Port port = pipe.ports[direction.ordinal()];
+          if (port != null)
+            (port.mode == Mode.EXTRACT ? sources : sinks).add(port);
+          Pipe next = pipes.get(pipe.pos.offset(direction));
+          if (next != null && next.walk != walk) {
+            next.walk = walk;
+            queue.add(next);
+          }
+        }
+      }
+      if (sources.isEmpty() || sinks.isEmpty())
+        continue;
+      sources.sort(byPosition);
+      sinks.sort(byPosition);
+      networks.add(new Network(first, sources.toArray(new Port[0]), sinks.toArray(new Port[0])));
+    }
+    networks.sort(Comparator.comparingLong(network -> network.first));
+  }
+
+  /**
+   * Shares a total out in proportion to weights, each share rounded down and the remainder handed out a unit at a
+   * time, starting from a port that moves on every tick so no port is always first. No share exceeds its weight.
+   */
+  private static void allocate(int[] weights, int count, int total, long tick, int[] shares) {
+    long sum = 0;
+    for (int i = 0; i < count; i++)
+      sum += weights[i];
+    if (total >= sum) {
+      System.arraycopy(weights, 0, shares, 0, count);
+      return;
+    }
+    int left = total;
+    for (int i = 0; i < count; i++) {
+      shares[i] = (int) ((long) weights[i] * total / sum);
+      left -= shares[i];
+    }
+    // Every port with a weight was rounded down short of it, and there are more of them than units left over.
+    for (int i = 0; i < count && left > 0; i++) {
+      int index = (int) ((tick + i) % count);
+      if (shares[index] < weights[index]) {
+        shares[index]++;
+        left--;
+      }
+    }
+  }
+
+  public enum Mode {
+    EXTRACT,
+    INSERT
+  }
+
+  private static final class Pipe {
+    final BlockPos pos;
+    final Port[] ports = new Port[Direction.values().length];
+    // The walk that last reached this pipe while finding networks.
+    int walk = 0;
+
+    private Pipe(BlockPos pos) {
+      this.pos = pos;
+    }
+  }
+
+  private static final class Port {
+    final BlockPos pipe;
+    final Direction side;
+    final Supplier<? extends FractionalTank> tank;
+    final TankAccessType access;
+    final Mode mode;
+    final int rate;
+
+    private Port(BlockPos pipe, Direction side, Supplier<? extends FractionalTank> tank, TankAccessType access,
+                 Mode mode, int rate) {
+      this.pipe = pipe;
+      this.side = side;
+      this.tank = tank;
+      this.access = access;
+      this.mode = mode;
+      this.rate = rate;
+    }
+  }
+
+  /**
+   * One connected set of pipes, with the working arrays for solving it kept between ticks.
+   */
+  private static final class Network {
+    final long first;
+    final Port[] sources;
+    final Port[] sinks;
+    final FractionalTank[] sourceTanks;
+    final FractionalTank[] sinkTanks;
+    final Fluid[] offered;
+    final int[] offers;
+    // What was drained from each source for the fluid being moved.
+    final int[] drained;
+    final int[] demands;
+    // What each sink may still take this tick, across every fluid.
+    final int[] budgets;
+    final int[] weights;
+    final int[] shares;
+    final FluidSink sink = new FluidSink();
+    final Solutes pooled = new Solutes();
+
+    private Network(long first, Port[] sources, Port[] sinks) {
+      this.first = first;
+      this.sources = sources;
+      this.sinks = sinks;
+      sourceTanks = new FractionalTank[sources.length];
+      sinkTanks = new FractionalTank[sinks.length];
+      offered = new Fluid[sources.length];
+      offers = new int[sources.length];
+      drained = new int[sources.length];
+      demands = new int[sinks.length];
+      budgets = new int[sinks.length];
+      int ports = Math.max(sources.length, sinks.length);
+      weights = new int[ports];
+      shares = new int[ports];
+    }
+
+    /**
+     * Takes every source's offer first, then moves one fluid at a time, in the order the sources offer them.
+     *
+     * @return The amount moved
+     */
+    long solve(long tick) {
+      for (int i = 0; i < sources.length; i++) {
+        FractionalTank tank = sources[i].tank.get();
+        sourceTanks[i] = tank;
+        offers[i] = tank == null ? 0 : tank.drain(sources[i].access, sources[i].rate, sink, FluidAction.SIMULATE);
+        offered[i] = offers[i] > 0 ? sink.fluid() : null;
+      }
+      for (int i = 0; i < sinks.length; i++) {
+        sinkTanks[i] = sinks[i].tank.get();
+        budgets[i] = sinks[i].rate;
+      }
+      long moved = 0;
+      for (int i = 0; i < sources.length; i++) {
+        Fluid fluid = offered[i];
+        if (fluid == null)
+          continue;
+        moved += move(fluid, tick);
+        for (int j = i; j < sources.length; j++)
+          if (offered[j] == fluid)
+            offered[j] = null;
+      }
+      Arrays.fill(sourceTanks, null);
+      Arrays.fill(sinkTanks, null);
+      return moved;
+    }
+
+    private int move(Fluid fluid, long tick) {
+      long offer = 0;
+      for (int i = 0; i < sources.length; i++) {
+        weights[i] = offered[i] == fluid ? offers[i] : 0;
+        offer += weights[i];
+      }
+      FluidStack probe = new FluidStack(fluid, 1);
+      long demand = 0;
+      for (int i = 0; i < sinks.length; i++) {
+        FractionalTank tank = sinkTanks[i];
+        demands[i] = 0;
+        if (tank == null || budgets[i] < 1)
+          continue;
+        // Ports onto the same tank share its free space, so each only asks for what the ones before left over.
+        int claimed = 0;
+        for (int j = 0; j < i; j++)
+          if (sinkTanks[j] == tank)
+            claimed += demands[j];
+        probe.setAmount(budgets[i] + claimed);
+        demands[i] = Math.max(0, tank.fillable(probe, sinks[i].access) - claimed);
+        demand += demands[i];
+      }
+      int planned = (int) Math.min(offer, demand);
+      if (planned < 1)
+        return 0;
+
+      allocate(weights, sources.length, planned, tick, shares);
+      int total = 0;
+      pooled.clear();
+      for (int i = 0; i < sources.length; i++) {
+        drained[i] = 0;
+        if (shares[i] < 1)
+          continue;
+        drained[i] = sourceTanks[i].drain(sources[i].access, fluid, shares[i], sink, FluidAction.EXECUTE);
+        total += drained[i];
+        pooled.addAll(sink.solutes());
+      }
+      if (total < 1)
+        return 0;
+
+      // A tank with two extracting ports may have offered the same fluid twice, so share out what was drained.
+      allocate(demands, sinks.length, total, tick, shares);
+      int held = total;
+      for (int i = 0; i < sinks.length && held > 0; i++) {
+        if (shares[i] < 1)
+          continue;
+        int filled = fill(sinkTanks[i], sinks[i].access, fluid, shares[i], held);
+        budgets[i] -= filled;
+        held -= filled;
+      }
+      // Whatever the sinks did not take after all goes back where it came from. Each source has room for what it
+      // gave, and taking it back is not a fill, so the source's isFluidValid is not asked.
+      int returned = 0;
+      for (int i = 0; i < sources.length && held > 0; i++) {
+        if (drained[i] < 1)
+          continue;
+        int amount = Math.min(drained[i], held);
+        Solutes dissolved = new Solutes();
+        pooled.split(amount, held, dissolved);
+        int back = sourceTanks[i].putBack(fluid, amount, dissolved);
+        pooled.addAll(dissolved);
+        held -= back;
+        returned += back;
+      }
+      if (held > 0)
+        throw new IllegalStateException(held + " mB of " + fluid.getRegistryName() + " drained by pipes at "
+            + sources[0].pipe + " could not be put anywhere.");
+      return total - returned;
+    }
+
+    /**
+     * Fills part of the pooled fluid, with its share of the pooled solutes. Only what the tank will take is offered,
+     * so no solutes need to be handed back.
+     *
+     * @param held How much fluid the pool holds
+     * @return How much the tank took
+     */
+    private int fill(FractionalTank tank, TankAccessType access, Fluid fluid, int amount, int held) {
+      FluidStack stack = new FluidStack(fluid, amount);
+      int accepted = tank.fillable(stack, access);
+      if (accepted < 1)
+        return 0;
+      Solutes dissolved = new Solutes();
+      pooled.split(accepted, held, dissolved);
+      stack.setAmount(accepted);
+      SoluteIds.write(dissolved, stack);
+      return tank.fill(stack, access, FluidAction.EXECUTE);
+    }
+  }
+}
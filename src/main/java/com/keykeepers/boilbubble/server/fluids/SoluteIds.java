@@ -0,0 +1,113 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.keykeepers.boilbubble.server.fluids.sim.Solutes;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.fluids.FluidStack;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out compact integer ids for substances dissolved in fluids, as {@link FluidIds} does for the fluids
+ * themselves. A solute is only a name: it needs no registry entry, and any name seen in a fluid stack or a save gets
+ * an id then. Ids stay fixed for the life of the game, and like fluid ids must never be written to disk or sent over
+ * the network.
+ *
+ * Fluid stacks carry what is dissolved in them in a child tag, {@value #TAG}, mapping each solute's name to its amount.
+ * The density of each solute comes from data; see {@link SolutePropertyLoader}.
+ */
+public final class SoluteIds {
+  public static final String TAG = "Solutes";
+  // Solutes without data weigh the same as water, so they leave a layer's density as it is in water.
+  static final int DEFAULT_DENSITY = 1000;
+
+  private static final ConcurrentHashMap<ResourceLocation, Integer> ids = new ConcurrentHashMap<>();
+  private static volatile ResourceLocation[] names = new ResourceLocation[16];
+  private static volatile int[] densities = new int[16];
+  private static volatile Map<ResourceLocation, Integer> loaded = Collections.emptyMap();
+  private static volatile int nextId = 0;
+
+  private SoluteIds() {}
+
+  public static int id(ResourceLocation name) {
+    Integer id = ids.get(name);
+    if (id != null)
+      return id;
+    return assign(name);
+  }
+
+  public static ResourceLocation name(int id) { return names[id]; }
+
+  public static int density(int id) { return densities[id]; }
+
+  /**
+   * @return What the stack says is dissolved in it, or null if nothing is
+   */
+  @Nullable
+  public static Solutes read(FluidStack stack) {
+    CompoundNBT tag = stack.getChildTag(TAG);
+    if (tag == null || tag.isEmpty())
+      return null;
+    Solutes solutes = new Solutes();
+    for (String key : tag.keySet()) {
+      long amount = tag.getLong(key);
+      ResourceLocation name = ResourceLocation.tryCreate(key);
+      if (name != null && amount > 0)
+        solutes.add(id(name), amount);
+    }
+    return solutes.isEmpty() ? null : solutes;
+  }
+
+  /**
+   * Records in the stack's tag what is dissolved in it, replacing whatever it said before.
+   *
+   * @param solutes What is dissolved, or null for nothing
+   */
+  public static void write(@Nullable Solutes solutes, FluidStack stack) {
+    if (solutes == null || solutes.isEmpty()) {
+      if (stack.hasTag())
+        stack.removeChildTag(TAG);
+      return;
+    }
+    CompoundNBT tag = new CompoundNBT();
+    for (int i = 0; i < solutes.size(); i++)
+      tag.putLong(name(solutes.id(i)).toString(), solutes.amount(i));
+    stack.getOrCreateTag().put(TAG, tag);
+  }
+
+  /**
+   * Replaces the solute densities with those given by data. Solutes it does not name get the default.
+   */
+  static synchronized void reload(Map<ResourceLocation, Integer> entries) {
+    loaded = entries;
+    ResourceLocation[] currentNames = names;
+    int[] reloaded = new int[currentNames.length];
+    for (int id = 0; id < nextId; id++)
+      reloaded[id] = entries.getOrDefault(currentNames[id], DEFAULT_DENSITY);
+    densities = reloaded;
+  }
+
+  private static synchronized int assign(ResourceLocation name) {
+    Integer id = ids.get(name);
+    if (id != null)
+      return id;
+    int newId = nextId;
+    ResourceLocation[] currentNames = names;
+    int[] currentDensities = densities;
+    if (newId == currentNames.length) {
+      currentNames = Arrays.copyOf(currentNames, newId * 2);
+      currentDensities = Arrays.copyOf(currentDensities, newId * 2);
+    }
+    currentNames[newId] = name;
+    currentDensities[newId] = loaded.getOrDefault(name, DEFAULT_DENSITY);
+    names = currentNames;
+    densities = currentDensities;
+    nextId = newId + 1;
+    ids.put(name, newId);
+    return newId;
+  }
+}
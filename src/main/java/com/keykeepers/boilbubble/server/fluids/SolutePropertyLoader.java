@@ -0,0 +1,63 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.keykeepers.boilbubble.BoilBubble;
+import net.minecraft.client.resources.JsonReloadListener;
+import net.minecraft.profiler.IProfiler;
+import net.minecraft.resources.IResourceManager;
+import net.minecraft.util.JSONUtils;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.event.AddReloadListenerEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads solute properties from data packs, one file per solute named after it:
+ * data/&lt;namespace&gt;/solute_properties/&lt;path&gt;.json describes the solute &lt;namespace&gt;:&lt;path&gt;.
+ *
+ * density: a positive number, weighed against the solvent's in proportion to how much of each a layer holds. Solutes
+ * with no file weigh as much as water.
+ *
+ * A file that fails to parse is skipped and logged, and the solute keeps the default.
+ */
+@Mod.EventBusSubscriber(modid = BoilBubble.MODID)
+public final class SolutePropertyLoader extends JsonReloadListener {
+  private static final Gson gson = new GsonBuilder().create();
+  private static final Logger logger = LogManager.getLogger();
+
+  private SolutePropertyLoader() {
+    super(gson, "solute_properties");
+  }
+
+  @SubscribeEvent
+  public static void onAddReloadListeners(AddReloadListenerEvent event) {
+    event.addListener(new SolutePropertyLoader());
+  }
+
+  @Override
+  protected void apply(Map<ResourceLocation, JsonElement> files, IResourceManager resourceManager, IProfiler profiler) {
+    HashMap<ResourceLocation, Integer> densities = new HashMap<>();
+    for (Map.Entry<ResourceLocation, JsonElement> file : files.entrySet()) {
+      try {
+        JsonObject json = JSONUtils.getJsonObject(file.getValue(), "solute properties");
+        int density = JSONUtils.getInt(json, "density");
+        if (density < 1)
+          throw new IllegalArgumentException("density must be positive");
+        densities.put(file.getKey(), density);
+      } catch (JsonParseException | IllegalArgumentException e) {
+        logger.error("Skipping solute properties for {}: {}", file.getKey(), e.getMessage());
+      }
+    }
+    SoluteIds.reload(densities);
+    logger.debug("Loaded solute properties for {} solutes", densities.size());
+  }
+}
@@ -0,0 +1,192 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.keykeepers.boilbubble.server.fluids.FractionalTank.TankAccessType;
+import net.minecraft.util.Direction;
+import net.minecraftforge.common.capabilities.Capability;
+import net.minecraftforge.common.capabilities.ICapabilityProvider;
+import net.minecraftforge.common.util.LazyOptional;
+import net.minecraftforge.fluids.FluidStack;
+import net.minecraftforge.fluids.capability.CapabilityFluidHandler;
+import net.minecraftforge.fluids.capability.IFluidHandler;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Exposes a tank as a fluid handler capability on each face of its block, reaching the tank through the end that
+ * face is mapped to: by default the up face fills and drains at the top, and every other face at the bottom. The
+ * mapping comes from the server config, and a holder may override it face by face. Lookups with no face reach the
+ * bottom, as the tank's own handler methods do.
+ *
+ * Each face's optional, and the handler for each end, are made once and handed out on every lookup, so neighbours
+ * asking for the capability allocate nothing. A face's optional is invalidated only when its mapping changes, which
+ * tells neighbours caching it to look it up again; a change to the config is picked up by each provider the next time
+ * it is looked up. Holders call {@link #invalidate()} when their block is removed.
+ */
+public final class TankCapabilityProvider implements ICapabilityProvider {
+  private static final int FACES = Direction.values().length;
+  private static volatile TankAccessType[] defaults = mapping(TankAccessType.TOP, Direction.UP);
+  private static volatile int version = 0;
+
+  private final TankAccessType[] overrides = new TankAccessType[FACES];
+  private final TankAccessType[] faces = new TankAccessType[FACES];
+  // One per face, and a last for lookups with no face.
+  @SuppressWarnings("unchecked")
+  private final LazyOptional<IFluidHandler>[] optionals = new LazyOptional[FACES + 1];
+  private final FaceHandler top;
+  private final FaceHandler bottom;
+  private int seenVersion;
+  private boolean valid = true;
+
+  /**
+   * @param tank Gives the tank each time a handler is used, for holders whose tank is replaced, like
+   * {@link TankPool#tank()}
+   */
+  public TankCapabilityProvider(Supplier<? extends FractionalTank> tank) {
+    top = new FaceHandler(tank, TankAccessType.TOP);
+    bottom = new FaceHandler(tank, TankAccessType.BOTTOM);
+    seenVersion = version;
+    System.arraycopy(defaults, 0, faces, 0, FACES);
+    for (int face = 0; face < FACES; face++)
+      expose(face, faces[face]);
+    expose(FACES, TankAccessType.BOTTOM);
+  }
+
+  public TankCapabilityProvider(FractionalTank tank) {
+    this(() -> tank);
+  }
+
+  /**
+   * Sets which faces of every provider that has not overridden them reach the top of the tank; the rest reach the
+   * bottom. Names that are not faces are ignored.
+   */
+  public static void configureTopFaces(List<? extends String> names) {
+    TankAccessType[] configured = mapping(TankAccessType.BOTTOM);
+    for (String name : names) {
+      Direction face = Direction.byName(name);
+      if (face != null)
+        configured[face.ordinal()] = TankAccessType.TOP;
+    }
+    if (Arrays.equals(configured, defaults))
+      return;
+    defaults = configured;
+    version++;
+  }
+
+  public static boolean isFace(String name) {
+    return Direction.byName(name) != null;
+  }
+
+  /**
+   * Maps one face to an end of the tank regardless of the config.
+   *
+   * @param type The end the face reaches, or null to follow the config again
+   */
+  public void configure(Direction face, @Nullable TankAccessType type) {
+    overrides[face.ordinal()] = type;
+    refresh(true);
+  }
+
+  /**
+   * @return The end of the tank the face reaches, or the bottom for no face
+   */
+  public TankAccessType access(@Nullable Direction face) {
+    refresh(false);
+    return face == null ? TankAccessType.BOTTOM : faces[face.ordinal()];
+  }
+
+  @Nonnull
+  @Override
+  public <T> LazyOptional<T> getCapability(@Nonnull Capability<T> cap, @Nullable Direction side) {
+    if (cap != CapabilityFluidHandler.FLUID_HANDLER_CAPABILITY || !valid)
+      return LazyOptional.empty();
+    refresh(false);
+    return optionals[side == null ? FACES : side.ordinal()].cast();
+  }
+
+  /**
+   * Invalidates every face, for when the block is removed; the provider offers nothing afterwards.
+   */
+  public void invalidate() {
+    valid = false;
+    for (LazyOptional<IFluidHandler> optional : optionals)
+      optional.invalidate();
+  }
+
+  /**
+   * Brings the faces up to date with the config and overrides, replacing the optional of each face that changed.
+   */
+  private void refresh(boolean force) {
+    int current = version;
+    if (!force && current == seenVersion)
+      return;
+    seenVersion = current;
+    TankAccessType[] configured = defaults;
+    for (int face = 0; face < FACES; face++) {
+      TankAccessType type = overrides[face] != null ? overrides[face] : configured[face];
+      if (type == faces[face])
+        continue;
+      faces[face] = type;
+      optionals[face].invalidate();
+      if (valid)
+        expose(face, type);
+    }
+  }
+
+  private void expose(int face, TankAccessType type) {
+    FaceHandler handler = type == TankAccessType.TOP ? top : bottom;
+    optionals[face] = LazyOptional.of(() -> handler);
+  }
+
+  private static TankAccessType[] mapping(TankAccessType type, Direction... faces) {
+    TankAccessType[] types = new TankAccessType[FACES];
+    Arrays.fill(types, TankAccessType.BOTTOM);
+    for (Direction face : faces)
+      types[face.ordinal()] = type;
+    return types;
+  }
+
+  /**
+   * The tank as seen through one end, which is where every fill and drain through this handler happens.
+   */
+  private static final class FaceHandler implements IFluidHandler {
+    private final Supplier<? extends FractionalTank> tank;
+    private final TankAccessType type;
+
+    private FaceHandler(Supplier<? extends FractionalTank> tank, TankAccessType type) {
+      this.tank = tank;
+      this.type = type;
+    }
+
+    @Override
+    public int getTanks() { return tank.get().getTanks(); }
+
+    @Nonnull
+    @Override
+    public FluidStack getFluidInTank(int tank) { return this.tank.get().getFluidInTank(tank, type); }
+
+    @Override
+    public int getTankCapacity(int tank) { return this.tank.get().getTankCapacity(tank); }
+
+    @Override
+    public boolean isFluidValid(int tank, @Nonnull FluidStack stack) {
+      return this.tank.get().isFluidValid(tank, type, stack);
+    }
+
+    @Override
+    public int fill(FluidStack resource, FluidAction action) { return tank.get().fill(resource, type, action); }
+
+    @Nonnull
+    @Override
+    public FluidStack drain(FluidStack resource, FluidAction action) {
+      return tank.get().drain(type, resource, action);
+    }
+
+    @Nonnull
+    @Override
+    public FluidStack drain(int maxDrain, FluidAction action) { return tank.get().drain(type, maxDrain, action); }
+  }
+}
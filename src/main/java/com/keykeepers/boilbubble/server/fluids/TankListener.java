@@ -0,0 +1,16 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+/**
+ * Receives notice whenever a tank inside a FractionalTank changes. The layer mask has bit n set when layer n, counting
+ * up from the bottom of the tank, changed; every layer from the 64th upward shares the top bit. Inserting or removing
+ * a layer shifts the layers above it, so all of those are reported as well. A mask of zero means the tank changed
+ * without any of its layers changing, such as the shell of a ThermalTank moving toward its target temperature.
+ */
+@FunctionalInterface
+public interface TankListener {
+  void tankChanged(FractionalTank source, int tank, long layers);
+
+  static long layer(int layer) { return 1L << Math.min(layer, 63); }
+
+  static long layersFrom(int layer) { return -1L << Math.min(layer, 63); }
+}
@@ -0,0 +1,226 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.world.World;
+import net.minecraftforge.fluids.FluidStack;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The shared contents of one connected group of tank blocks, as kept by {@link TankPools}. A pool holds a single
+ * {@link ThermalTank} with one tank whose capacity is the sum of its members', registered with the
+ * {@link ThermalScheduler} as one holder, so a structure of any size costs one thermal step.
+ *
+ * A tank's capacity is fixed, so when members join or leave the pool builds a tank of the new size and moves its
+ * contents across, with their temperatures. That happens the next time the tank is asked for rather than on every
+ * change, so a structure loading or unloading a block at a time is only rebuilt once. Members that leave take their
+ * share out of the tank as it stands, and whether the rest still connects is worked out the next time the pool is
+ * used, as described by {@link TankPools}.
+ */
+public final class TankPool {
+  final ArrayList<TankPools.Node> members = new ArrayList<>();
+  int capacity;
+  // Contents of pools merged into this one, moved into the tank at the next rebuild.
+  final ArrayList<ThermalTank> pending = new ArrayList<>();
+  // Set when members have left since the pool last checked that the rest still connect; they are still in members.
+  boolean unsettled = false;
+  private final TankPools pools;
+  private final World world;
+  private ThermalTank tank;
+  // Members sorted by position, with the capacity before each; used to share the contents out when saving.
+  private long[] order;
+  private long[] offsets;
+  private int[] parts;
+  // Where each member's cut of each layer starts, from LayerStack.slices, and the tank contents it was worked out for.
+  private int[][] slices;
+  private ThermalTank slicedTank;
+  private long slicedStamp;
+
+  TankPool(TankPools pools, World world) {
+    this.pools = pools;
+    this.world = world;
+  }
+
+  public int members() {
+    settle();
+    return members.size();
+  }
+
+  public int capacity() { return capacity; }
+
+  /**
+   * @return The tank holding the pool's contents. It is replaced whenever the pool changes size, so look it up again
+   * rather than keeping it.
+   */
+  public ThermalTank tank() {
+    settle();
+    if (tank != null && pending.isEmpty() && tank.getTankCapacity(0) == capacity)
+      return tank;
+    return rebuild();
+  }
+
+  /**
+   * @return The tank with the contents of any merged pools moved in, but at whatever size it was last built, which
+   * may be larger than the pool now is
+   */
+  private ThermalTank contents() {
+    return tank != null && pending.isEmpty() ? tank : rebuild();
+  }
+
+  private ThermalTank rebuild() {
+    Pooled rebuilt = new Pooled(capacity);
+    if (tank != null)
+      pending.add(0, tank);
+    long shell = 0;
+    long weight = 0;
+    for (ThermalTank source : pending) {
+      ThermalScheduler.unregister(world, source);
+      // Contents loaded from a save catch up on the time they spent unloaded before they are merged.
+      source.catchUp(world.getGameTime());
+      if (weight == 0)
+        rebuilt.targetTemperature(0, source.targetTemperature(0));
+      shell += (long) source.currentTemperature(0) * source.getTankCapacity(0);
+      weight += source.getTankCapacity(0);
+      source.transfer(0, rebuilt, 0, 1, 1);
+      // Contents are only ever shared out so that they fit the pool's capacity; anything left here would be lost.
+      if (source.getFluidAmount(0) > 0)
+        throw new IllegalStateException(source.getFluidAmount(0) + " mB did not fit a pool of " + capacity
+            + " mB when it was rebuilt.");
+    }
+    pending.clear();
+    if (weight > 0)
+      rebuilt.shellTemperature(0, (int) (shell / weight));
+    tank = rebuilt;
+    ThermalScheduler.register(world, members.get(0).pos, rebuilt);
+    return rebuilt;
+  }
+
+  public void targetTemperature(int temperature) { tank().targetTemperature(0, temperature); }
+
+  /**
+   * Takes the tank out of the world's scheduler; the pool is not used again.
+   */
+  void discard() {
+    if (tank != null)
+      ThermalScheduler.unregister(world, tank);
+    for (ThermalTank source : pending)
+      ThermalScheduler.unregister(world, source);
+    tank = null;
+    pending.clear();
+  }
+
+  /**
+   * Hands this pool's members and contents over to another it has joined up with; this pool is not used again.
+   */
+  void mergeInto(TankPool kept) {
+    kept.members.addAll(members);
+    kept.capacity += capacity;
+    kept.unsettled |= unsettled;
+    kept.membersChanged();
+    if (tank != null)
+      kept.absorb(tank);
+    for (ThermalTank source : pending)
+      kept.absorb(source);
+    members.clear();
+    pending.clear();
+    tank = null;
+    capacity = 0;
+    unsettled = false;
+  }
+
+  private void absorb(ThermalTank source) {
+    ThermalScheduler.unregister(world, source);
+    pending.add(source);
+  }
+
+  /**
+   * Moves a share of the contents into a new tank of the given capacity, at the same temperatures. What is left fits
+   * in the rest of the whole, so the pool can shrink by the share's capacity without losing anything.
+   *
+   * @param whole The capacity the contents are currently shared across, out of which the new tank takes its own
+   */
+  Pooled takeShare(int shareCapacity, int whole) {
+    ThermalTank source = contents();
+    Pooled target = new Pooled(shareCapacity);
+    target.pausedAt = source.stateTime();
+    target.targetTemperature(0, source.targetTemperature(0));
+    target.shellTemperature(0, source.currentTemperature(0));
+    source.transfer(0, target, 0, shareCapacity, whole);
+    return target;
+  }
+
+  /**
+   * Makes the tank the pool's own, sized to it exactly.
+   */
+  void adopt(ThermalTank tank) {
+    this.tank = tank;
+    ThermalScheduler.register(world, members.get(0).pos, tank);
+  }
+
+  /**
+   * Catches up with any members that have left, which may split the pool; see {@link TankPools#settle}.
+   */
+  void settle() {
+    if (unsettled)
+      pools.settle(this);
+  }
+
+  void membersChanged() {
+    order = null;
+    offsets = null;
+    parts = null;
+    slices = null;
+    slicedTank = null;
+  }
+
+  /**
+   * @return The member's share of the contents, saved as though it were a tank of its own. Every member's share of
+   * the same contents adds up to the whole, and none holds more than the member's capacity.
+   */
+  CompoundNBT share(TankPools.Node member) {
+    ThermalTank tank = tank();
+    if (order == null) {
+      TankPools.Node[] sorted = members.toArray(new TankPools.Node[0]);
+      Arrays.sort(sorted, Comparator.comparingLong(node -> node.pos.toLong()));
+      order = new long[sorted.length];
+      offsets = new long[sorted.length];
+      parts = new int[sorted.length];
+      long offset = 0;
+      for (int i = 0; i < sorted.length; i++) {
+        order[i] = sorted[i].pos.toLong();
+        offsets[i] = offset;
+        parts[i] = sorted[i].capacity;
+        offset += sorted[i].capacity;
+      }
+    }
+    int index = Arrays.binarySearch(order, member.pos.toLong());
+    if (index < 0)
+      throw new IllegalArgumentException(member.pos + " is not a member of this pool.");
+    // Saving a structure asks for every member's share of the same contents, so the layers are cut up once for all.
+    long stamp = tank.changeStamp();
+    if (slices == null || slicedTank != tank || slicedStamp != stamp) {
+      slices = tank.layerStack(0).slices(parts);
+      slicedTank = tank;
+      slicedStamp = stamp;
+    }
+    return tank.serializeShare(offsets[index], offsets[index] + member.capacity, capacity, slices[index],
+        slices[index + 1]);
+  }
+
+  /**
+   * The pool's tank: one tank that takes any fluid.
+   */
+  static final class Pooled extends ThermalTank {
+    Pooled(int capacity) {
+      super(1, capacity);
+    }
+
+    @Override
+    public boolean isFluidValid(int tank, TankAccessType type, @Nonnull FluidStack stack) {
+      return true;
+    }
+  }
+}
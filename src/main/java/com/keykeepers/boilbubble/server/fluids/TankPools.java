@@ -0,0 +1,339 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.keykeepers.boilbubble.BoilBubble;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.util.Direction;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.IWorld;
+import net.minecraft.world.World;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fluids.FluidStack;
+import net.minecraftforge.fluids.capability.IFluidHandler;
+import net.minecraftforge.fluids.capability.templates.EmptyFluidHandler;
+import net.minecraftforge.fml.common.Mod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Joins tank blocks that touch into pools sharing one tank, so that a storage structure is one handler and one
+ * thermal step however many blocks it is built from. Owners join each block when it is loaded or placed, giving its
+ * capacity, and leave when it is unloaded or broken; a pool's capacity is the sum of its members'. See
+ * {@link TankPool} for the pool itself.
+ *
+ * Which blocks share a pool is tracked with a union-find forest over the members, so joining a block to its
+ * neighbours and finding a block's pool take near-constant time. A union-find cannot take members away, so a block
+ * that leaves only takes its share of the contents and shrinks the pool. The rest of the pool is walked breadth-first
+ * the next time the pool is used, or at the start of the next tick, however many blocks left in between: if they all
+ * still connect, nothing more happens; if not, each separate part becomes a pool of its own and takes its share of
+ * the contents, in proportion to its capacity and at the same temperatures. Unloading a structure a block at a time
+ * thus costs one walk and one rebuild, rather than one of each per block.
+ *
+ * Each member gets a handler of its own from {@link #join}, to expose as its capability. It stays valid, following
+ * the block into whatever pool it ends up in, until the block leaves.
+ *
+ * Contents are saved per member: {@link #save} gives a block its share, and shares saved from the same contents add
+ * up to them exactly, so a structure that is saved and loaded whole comes back as it was.
+ */
+@Mod.EventBusSubscriber(modid = BoilBubble.MODID)
+public final class TankPools {
+  private static final HashMap<IWorld, TankPools> worlds = new HashMap<>();
+
+  private final World world;
+  private final HashMap<BlockPos, Node> nodes = new HashMap<>();
+  // Pools whose tank no longer matches their size, rebuilt at the start of the next tick if nothing asks sooner.
+  private final Set<TankPool> stale = Collections.newSetFromMap(new IdentityHashMap<>());
+  private int walk = 0;
+
+  private TankPools(World world) {
+    this.world = world;
+  }
+
+  /**
+   * Adds a block to the pool of whichever neighbours are members, merging their pools if it connects several. A block
+   * that is already a member must leave before it joins again.
+   *
+   * @param capacity What the block adds to its pool's capacity
+   * @param saved The block's share of the contents, as saved by {@link #save} or returned by {@link #leave}, or null
+   * @return The block's handler onto its pool
+   */
+  public static IFluidHandler join(World world, BlockPos pos, int capacity, @Nullable CompoundNBT saved) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Capacity must be a positive value");
+    TankPools pools = worlds.computeIfAbsent(world, w -> new TankPools(world));
+    if (pools.nodes.containsKey(pos))
+      throw new IllegalStateException(pos + " is already a member of a pool.");
+    Node node = new Node(pos.toImmutable(), capacity);
+    pools.nodes.put(node.pos, node);
+    TankPool pool = new TankPool(pools, world);
+    pool.members.add(node);
+    pool.capacity = capacity;
+    if (saved != null) {
+      TankPool.Pooled contents = new TankPool.Pooled(capacity);
+      contents.deserializeNBT(saved);
+      pool.pending.add(contents);
+    }
+    node.pool = pool;
+    for (Direction direction : Direction.values()) {
+      Node neighbour = pools.nodes.get(node.pos.offset(direction));
+      if (neighbour != null)
+        pools.union(node, neighbour);
+    }
+    pools.stale.add(find(node).pool);
+    return node.handler;
+  }
+
+  /**
+   * Takes a block out of its pool, splitting the pool if the block was all that held it together.
+   *
+   * @return The block's share of the contents, which go with it, or null if it was not a member
+   */
+  @Nullable
+  public static CompoundNBT leave(World world, BlockPos pos) {
+    TankPools pools = worlds.get(world);
+    return pools == null ? null : pools.leave(pos);
+  }
+
+  /**
+   * @return The block's share of its pool's contents, to save with the block, or null if it is not a member
+   */
+  @Nullable
+  public static CompoundNBT save(World world, BlockPos pos) {
+    TankPools pools = worlds.get(world);
+    Node node = pools == null ? null : pools.nodes.get(pos);
+    return node == null ? null : poolOf(node).share(node);
+  }
+
+  /**
+   * @return The pool the block belongs to, or null if it is not a member
+   */
+  @Nullable
+  public static TankPool pool(World world, BlockPos pos) {
+    TankPools pools = worlds.get(world);
+    Node node = pools == null ? null : pools.nodes.get(pos);
+    return node == null ? null : poolOf(node);
+  }
+
+  @SubscribeEvent
+  public static void onWorldTick(TickEvent.WorldTickEvent event) {
+    if (event.phase != TickEvent.Phase.START || event.world.isRemote)
+      return;
+    TankPools pools = worlds.get(event.world);
+    if (pools == null || pools.stale.isEmpty())
+      return;
+    // Merged pools are left empty, and have nothing to build.
+    for (TankPool pool : pools.stale)
+      if (pool.capacity > 0)
+        pool.tank();
+    pools.stale.clear();
+  }
+
+  @SubscribeEvent
+  public static void onWorldUnload(WorldEvent.Unload event) {
+    TankPools pools = worlds.remove(event.getWorld());
+    if (pools == null)
+      return;
+    // A pool's root may have left without the pool being settled since, so find each pool from its members.
+    Set<TankPool> discarded = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Node node : pools.nodes.values()) {
+      TankPool pool = find(node).pool;
+      if (discarded.add(pool))
+        pool.discard();
+    }
+  }
+
+  /**
+   * @return The pool the member belongs to, once the pool has caught up with any members that left it
+   */
+  private static TankPool poolOf(Node node) {
+    TankPool pool = find(node).pool;
+    if (!pool.unsettled)
+      return pool;
+    pool.settle();
+    return find(node).pool;
+  }
+
+  private static Node find(Node node) {
+    while (node.parent != node) {
+      node.parent = node.parent.parent;
+      node = node.parent;
+    }
+    return node;
+  }
+
+  private void union(Node a, Node b) {
+    Node rootA = find(a);
+    Node rootB = find(b);
+    if (rootA == rootB)
+      return;
+    if (rootA.rank < rootB.rank) {
+      Node swap = rootA;
+      rootA = rootB;
+      rootB = swap;
+    }
+    rootB.parent = rootA;
+    if (rootA.rank == rootB.rank)
+      rootA.rank++;
+    rootB.pool.mergeInto(rootA.pool);
+    rootB.pool = null;
+  }
+
+  @Nullable
+  private CompoundNBT leave(BlockPos pos) {
+    Node node = nodes.remove(pos);
+    if (node == null)
+      return null;
+    node.handler.node = null;
+    TankPool pool = find(node).pool;
+    // The share comes out of all of the contents, as the tank stands. What is left fits the smaller capacity, so the
+    // tank need not be rebuilt until the pool is next used.
+    TankPool.Pooled leaving = pool.takeShare(node.capacity, pool.capacity);
+    pool.capacity -= node.capacity;
+    CompoundNBT share = leaving.serializeNBT();
+    if (pool.capacity == 0) {
+      pool.discard();
+      stale.remove(pool);
+      return share;
+    }
+    pool.unsettled = true;
+    pool.membersChanged();
+    stale.add(pool);
+    return share;
+  }
+
+  /**
+   * Catches a pool up with the members that have left it since it was last settled: drops them, and walks the rest
+   * breadth-first to find whether they still connect. If not, the largest part keeps the pool, and each of the others
+   * takes its share of the contents into a pool of its own. Every part is re-rooted, since the blocks that left may
+   * have been on the path to the old root.
+   */
+  void settle(TankPool pool) {
+    pool.unsettled = false;
+    walk++;
+    ArrayList<ArrayList<Node>> parts = new ArrayList<>();
+    ArrayList<Integer> capacities = new ArrayList<>();
+    for (Node start : pool.members) {
+      if (start.walk == walk || nodes.get(start.pos) != start)
+        continue;
+      ArrayList<Node> part = new ArrayList<>();
+      int capacity = 0;
+      ArrayDeque<Node> queue = new ArrayDeque<>();
+      start.walk = walk;
+      queue.add(start);
+      while (!queue.isEmpty()) {
+        Node member = queue.poll();
+        part.add(member);
+        capacity += member.capacity;
+        for (Direction step : Direction.values()) {
+          Node next = nodes.get(member.pos.offset(step));
+          if (next != null && next.walk != walk) {
+            next.walk = walk;
+            queue.add(next);
+          }
+        }
+      }
+      parts.add(part);
+      capacities.add(capacity);
+    }
+
+    int largest = 0;
+    for (int i = 1; i < parts.size(); i++)
+      if (capacities.get(i) > capacities.get(largest))
+        largest = i;
+    for (int i = 0; i < parts.size(); i++) {
+      if (i == largest)
+        continue;
+      ArrayList<Node> part = parts.get(i);
+      TankPool split = new TankPool(this, world);
+      split.members.addAll(part);
+      split.capacity = capacities.get(i);
+      TankPool.Pooled contents = pool.takeShare(split.capacity, pool.capacity);
+      pool.capacity -= split.capacity;
+      split.adopt(contents);
+      reroot(part, split);
+    }
+    pool.members.clear();
+    pool.members.addAll(parts.get(largest));
+    pool.membersChanged();
+    reroot(parts.get(largest), pool);
+  }
+
+  private static void reroot(ArrayList<Node> part, TankPool pool) {
+    Node root = part.get(0);
+    for (Node member : part) {
+      member.parent = root;
+      member.rank = 0;
+      member.pool = null;
+    }
+    root.rank = part.size() > 1 ? 1 : 0;
+    root.pool = pool;
+  }
+
+  /**
+   * One member block. Only a root's pool is set; every other member finds its pool through its root.
+   */
+  static final class Node {
+    final BlockPos pos;
+    final int capacity;
+    final MemberHandler handler = new MemberHandler(this);
+    Node parent = this;
+    int rank = 0;
+    TankPool pool;
+    // The walk that last reached this member while splitting.
+    int walk = 0;
+
+    private Node(BlockPos pos, int capacity) {
+      this.pos = pos;
+      this.capacity = capacity;
+    }
+  }
+
+  /**
+   * A member's view of its pool, which follows the member through merges and splits. Once the member leaves, the
+   * view holds nothing and accepts nothing.
+   */
+  private static final class MemberHandler implements IFluidHandler {
+    private Node node;
+
+    private MemberHandler(Node node) {
+      this.node = node;
+    }
+
+    private IFluidHandler target() {
+      Node member = node;
+      return member == null ? EmptyFluidHandler.INSTANCE : poolOf(member).tank();
+    }
+
+    @Override
+    public int getTanks() { return target().getTanks(); }
+
+    @Nonnull
+    @Override
+    public FluidStack getFluidInTank(int tank) { return target().getFluidInTank(tank); }
+
+    @Override
+    public int getTankCapacity(int tank) { return target().getTankCapacity(tank); }
+
+    @Override
+    public boolean isFluidValid(int tank, @Nonnull FluidStack stack) { return target().isFluidValid(tank, stack); }
+
+    @Override
+    public int fill(FluidStack resource, FluidAction action) { return target().fill(resource, action); }
+
+    @Nonnull
+    @Override
+    public FluidStack drain(FluidStack resource, FluidAction action) { return target().drain(resource, action); }
+
+    @Nonnull
+    @Override
+    public FluidStack drain(int maxDrain, FluidAction action) { return target().drain(maxDrain, action); }
+  }
+}
@@ -0,0 +1,74 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides how often a ThermalTank is ticked from its distance to the nearest player. Bands are written as
+ * "distance:interval", meaning a tank within that many blocks of a player is stepped once every interval ticks. Tanks
+ * beyond every band use the far interval. The elapsed ticks are passed on to
+ * {@link ThermalTank#processThermal(int)}, so a slower tank still follows roughly the same temperature curve.
+ */
+public final class ThermalLod {
+  private static volatile ThermalLod current = new ThermalLod(new double[0], new int[0], 1);
+
+  private final double[] distancesSq;
+  private final int[] intervals;
+  private final int farInterval;
+
+  private ThermalLod(double[] distancesSq, int[] intervals, int farInterval) {
+    this.distancesSq = distancesSq;
+    this.intervals = intervals;
+    this.farInterval = farInterval;
+  }
+
+  public static ThermalLod current() { return current; }
+
+  public static void configure(List<? extends String> bands, int farInterval) {
+    double[] distancesSq = new double[bands.size()];
+    int[] intervals = new int[bands.size()];
+    int count = 0;
+    for (String band : bands) {
+      if (!isBand(band))
+        continue;
+      int split = band.indexOf(':');
+      double distance = Double.parseDouble(band.substring(0, split).trim());
+      int interval = Integer.parseInt(band.substring(split + 1).trim());
+      // Keep the bands sorted nearest first.
+      int slot = count;
+      while (slot > 0 && distancesSq[slot - 1] > distance * distance) {
+        distancesSq[slot] = distancesSq[slot - 1];
+        intervals[slot] = intervals[slot - 1];
+        slot--;
+      }
+      distancesSq[slot] = distance * distance;
+      intervals[slot] = interval;
+      count++;
+    }
+    current = new ThermalLod(Arrays.copyOf(distancesSq, count), Arrays.copyOf(intervals, count),
+        Math.max(1, farInterval));
+  }
+
+  public static boolean isBand(String band) {
+    int split = band.indexOf(':');
+    if (split < 1)
+      return false;
+    try {
+      return Double.parseDouble(band.substring(0, split).trim()) >= 0
+          && Integer.parseInt(band.substring(split + 1).trim()) >= 1;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param nearestDistanceSq Squared distance to the nearest player, or positive infinity if there is none
+   * @return The number of ticks between steps
+   */
+  public int interval(double nearestDistanceSq) {
+    for (int i = 0; i < distancesSq.length; i++)
+      if (nearestDistanceSq <= distancesSq[i])
+        return intervals[i];
+    return farInterval;
+  }
+}
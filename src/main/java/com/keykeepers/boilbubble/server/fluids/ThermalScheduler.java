@@ -0,0 +1,466 @@
+package com.keykeepers.boilbubble.server.fluids;
+
+import com.keykeepers.boilbubble.BoilBubble;
+import com.keykeepers.boilbubble.server.metrics.Histogram;
+import com.keykeepers.boilbubble.server.metrics.Metrics;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.IWorld;
+import net.minecraft.world.World;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ticks every registered ThermalTank in a world as a single batch at the end of each server world tick. Owners
+ * register their tank when it is loaded and unregister it when it is removed, and stop calling
+ * {@link ThermalTank#processThermal()} themselves.
+ *
+ * Each tank is ticked at a rate picked by {@link ThermalLod} from its distance to the nearest player, and receives
+ * the number of ticks that passed since its last step. Distances are measured to the 16-block section a tank is in,
+ * once per section per tick, so the players are not scanned again for every tank. A tank registered again after a
+ * spell unregistered, or loaded from a save, first fast-forwards over the ticks it missed; see
+ * {@link ThermalTank#fastForward(long)}.
+ *
+ * Tanks that have gone dormant (see {@link ThermalTank#isDormant()}) are dropped from the batch and cost nothing until
+ * something wakes them.
+ *
+ * A tank's thermal step only touches its own state, so once a world holds enough tanks the steps are spread across a
+ * shared fork-join pool. Listener notifications are then sent from the server thread after each chunk of steps has
+ * finished. The thermal results are the same as stepping each tank serially.
+ *
+ * Each world gets at most the configured time budget per tick. Tanks are visited round-robin, a chunk at a time,
+ * and once the budget is spent the rest wait for the next tick, picking up where this one stopped. A tank that waits
+ * is not short-changed: its next step covers every tick since its last one. How far behind the scheduler has fallen
+ * is reported by {@link #lag(World)} and {@link #backlog(World)}.
+ *
+ * With off-thread stepping enabled, the server thread only copies each due tank's state into a back buffer at the
+ * end of the tick. The steps are computed on the pool while the next tick starts, and merged into the live tanks at
+ * the start of the tick after (see {@link com.keykeepers.boilbubble.server.fluids.sim.ThermalBuffer} for how fills and
+ * drains made in between are reconciled). Thermal changes then show up one tick later than when stepped in place,
+ * and a tank's state only counts as moved on once they do; a tank unregistered in between waits for its step first.
+ * The time budget covers the workers' share too: each tank captured is charged what a tank cost to compute in the
+ * last batch, so the batch the server thread waits on at the start of the next tick stays within the budget.
+ */
+@Mod.EventBusSubscriber(modid = BoilBubble.MODID)
+public final class ThermalScheduler {
+  // Below this many tanks, handing work to other threads costs more than it saves.
+  private static final int PARALLEL_THRESHOLD = 64;
+  private static final int BATCH_SIZE = 16;
+  // Tanks stepped between checks of the time budget.
+  private static final int CHUNK_SIZE = 256;
+  private static final HashMap<IWorld, ThermalScheduler> schedulers = new HashMap<>();
+  private static ForkJoinPool pool;
+  private static volatile long tickBudget = 0;
+  private static volatile boolean offThread = false;
+
+  private final World world;
+  private final String metricPrefix;
+  private final Histogram tickNanos;
+  private final Histogram publishNanos;
+  private final AtomicLong registeredGauge;
+  private final AtomicLong activeGauge;
+  private final AtomicLong layersGauge;
+  private final ArrayList<ThermalTank> tanks = new ArrayList<>();
+  private final ArrayList<ThermalTank> active = new ArrayList<>();
+  private ThermalTank[] batch = new ThermalTank[CHUNK_SIZE];
+  private long currentTick;
+  private int cursor = 0;
+  private long lag = 0;
+  private int backlog = 0;
+  // Tanks captured at the end of the last tick whose steps are being computed off the server thread.
+  private ThermalTank[] inFlight = new ThermalTank[CHUNK_SIZE];
+  private int inFlightCount = 0;
+  // The tick the steps in flight bring their tanks up to.
+  private long inFlightTick;
+  private ForkJoinTask<?> computing;
+  // Time the workers spent on the batch in flight, and what one tank cost on average in the last batch.
+  private final LongAdder computeNanos = new LongAdder();
+  private long computeCost = 0;
+  // Squared distance from each 16-block section holding a tank stepped this tick to the nearest player, so players are
+  // scanned once per section rather than once per tank.
+  private final Long2DoubleOpenHashMap sectionDistances = new Long2DoubleOpenHashMap();
+  private final BlockPos.Mutable section = new BlockPos.Mutable();
+  private long distancesTick = -1;
+
+  private ThermalScheduler(World world) {
+    this.world = world;
+    currentTick = world.getGameTime();
+    metricPrefix = "thermal." + world.getDimensionKey().getLocation() + ".";
+    tickNanos = Metrics.histogram(metricPrefix + "tick.nanos");
+    publishNanos = Metrics.histogram(metricPrefix + "publish.nanos");
+    registeredGauge = Metrics.gauge(metricPrefix + "tanks.registered");
+    activeGauge = Metrics.gauge(metricPrefix + "tanks.active");
+    layersGauge = Metrics.gauge(metricPrefix + "layers");
+  }
+
+  public static void register(World world, BlockPos pos, ThermalTank tank) {
+    if (tank.scheduler != null)
+      throw new IllegalStateException("Tank is already registered with a scheduler.");
+    ThermalScheduler scheduler = schedulers.computeIfAbsent(world, w -> new ThermalScheduler(world));
+    scheduler.tanks.add(tank);
+    tank.scheduler = scheduler;
+    tank.position(pos);
+    tank.catchUp(world.getGameTime());
+    scheduler.wake(tank);
+  }
+
+  public static void unregister(World world, ThermalTank tank) {
+    ThermalScheduler scheduler = schedulers.get(world);
+    if (scheduler == null || tank.scheduler != scheduler)
+      return;
+    // A step still being computed is finished and kept, so the tank leaves with every tick it was stepped over.
+    if (tank.inFlight)
+      scheduler.finish(tank);
+    tank.pausedAt = tank.stateTime();
+    scheduler.tanks.remove(tank);
+    if (tank.scheduled)
+      scheduler.active.remove(tank);
+    tank.scheduler = null;
+    tank.scheduled = false;
+  }
+
+  public static int registered(World world) {
+    ThermalScheduler scheduler = schedulers.get(world);
+    return scheduler == null ? 0 : scheduler.tanks.size();
+  }
+
+  public static int active(World world) {
+    ThermalScheduler scheduler = schedulers.get(world);
+    return scheduler == null ? 0 : scheduler.active.size();
+  }
+
+  /**
+   * @return The number of fluid layers across every tank registered in the world. Walks every tank, so this is meant
+   * for diagnostics rather than for calling every tick.
+   */
+  public static int layers(World world) {
+    ThermalScheduler scheduler = schedulers.get(world);
+    return scheduler == null ? 0 : scheduler.layers();
+  }
+
+  /**
+   * @param nanos The most time each world may spend on thermal steps per tick, or 0 for no limit
+   */
+  public static void configureBudget(long nanos) { tickBudget = Math.max(0, nanos); }
+
+  /**
+   * @param enabled Whether thermal steps are computed on worker threads from a snapshot, rather than in place on the
+   * server thread
+   */
+  public static void configureOffThread(boolean enabled) { offThread = enabled; }
+
+  /**
+   * @return How many ticks the most overdue tank in the world was behind its schedule at the last tick
+   */
+  public static long lag(World world) {
+    ThermalScheduler scheduler = schedulers.get(world);
+    return scheduler == null ? 0 : scheduler.lag;
+  }
+
+  /**
+   * @return How many tanks were due at the last tick but had to wait for lack of time
+   */
+  public static int backlog(World world) {
+    ThermalScheduler scheduler = schedulers.get(world);
+    return scheduler == null ? 0 : scheduler.backlog;
+  }
+
+  @SubscribeEvent
+  public static void onWorldTick(TickEvent.WorldTickEvent event) {
+    if (event.world.isRemote)
+      return;
+    ThermalScheduler scheduler = schedulers.get(event.world);
+    if (scheduler == null)
+      return;
+    long start = Metrics.start();
+    if (event.phase == TickEvent.Phase.START) {
+      scheduler.publish();
+      if (start != 0)
+        scheduler.publishNanos.record(System.nanoTime() - start);
+    } else {
+      scheduler.tick(event.world.getGameTime());
+      if (start != 0) {
+        scheduler.tickNanos.record(System.nanoTime() - start);
+        scheduler.registeredGauge.set(scheduler.tanks.size());
+        scheduler.activeGauge.set(scheduler.active.size());
+        scheduler.layersGauge.set(scheduler.layers());
+      }
+    }
+  }
+
+  @SubscribeEvent
+  public static void onWorldUnload(WorldEvent.Unload event) {
+    ThermalScheduler scheduler = schedulers.remove(event.getWorld());
+    if (scheduler == null)
+      return;
+    // Let the workers finish with the buffers; the results are dropped along with the world.
+    if (scheduler.computing != null)
+      scheduler.computing.quietlyJoin();
+    for (ThermalTank tank : scheduler.tanks) {
+      tank.scheduler = null;
+      tank.scheduled = false;
+      tank.inFlight = false;
+    }
+    Metrics.remove(scheduler.metricPrefix);
+  }
+
+  long now() { return world.getGameTime(); }
+
+  void wake(ThermalTank tank) {
+    if (tank.scheduled)
+      return;
+    tank.scheduled = true;
+    // Time spent dormant was spent at equilibrium, so the first step after waking covers a single tick.
+    tank.lastStep = currentTick;
+    tank.nextStep = currentTick + 1;
+    active.add(tank);
+  }
+
+  private void tick(long now) {
+    currentTick = now;
+    int size = active.size();
+    if (size == 0) {
+      lag = 0;
+      backlog = 0;
+      return;
+    }
+
+    long budget = tickBudget;
+    long start = System.nanoTime();
+    boolean outOfTime = false;
+    int index = cursor < size ? cursor : 0;
+    int nextCursor = index;
+    int due = 0;
+    int stepped = 0;
+    long maxLag = 0;
+    for (int visited = 0; visited < size && !active.isEmpty(); ) {
+      int count = 0;
+      for (; visited < size && count < CHUNK_SIZE; visited++) {
+        // Listeners told of the last chunk's steps may have unregistered tanks, shrinking the list. Wrapping early
+        // only revisits tanks already stepped, which are no longer due.
+        if (index >= active.size()) {
+          if (active.isEmpty())
+            break;
+          index = 0;
+        }
+        ThermalTank tank = active.get(index);
+        index = index + 1 >= active.size() ? 0 : index + 1;
+        if (now < tank.nextStep)
+          continue;
+        due++;
+        maxLag = Math.max(maxLag, now - tank.nextStep);
+        if (outOfTime)
+          continue;
+        tank.elapsed = (int) Math.min(now - tank.lastStep, Integer.MAX_VALUE);
+        batch[count++] = tank;
+      }
+      if (count > 0) {
+        step(count, now);
+        stepped += count;
+        long spent = System.nanoTime() - start;
+        // Captured tanks are computed later, so charge what the last batch says they will cost.
+        if (offThread)
+          spent += stepped * computeCost;
+        if (budget > 0 && spent >= budget) {
+          outOfTime = true;
+          nextCursor = index;
+        }
+      }
+    }
+    lag = maxLag;
+    backlog = due - stepped;
+
+    // Drop dormant tanks, keeping the cursor on the same tank.
+    int kept = 0;
+    int keptCursor = 0;
+    for (int i = 0; i < active.size(); i++) {
+      ThermalTank tank = active.get(i);
+      if (i == nextCursor)
+        keptCursor = kept;
+      if (tank.isDormant())
+        tank.scheduled = false;
+      else
+        active.set(kept++, tank);
+    }
+    active.subList(kept, active.size()).clear();
+    cursor = keptCursor;
+
+    if (inFlightCount > 0)
+      computing = pool().submit(new StepTask(inFlight, 0, inFlightCount, computeNanos));
+  }
+
+  /**
+   * Waits for the steps computed since the end of the last tick and merges them into their tanks.
+   */
+  private void publish() {
+    if (computing == null)
+      return;
+    computing.join();
+    computing = null;
+    if (inFlightCount > 0)
+      computeCost = computeNanos.sumThenReset() / inFlightCount;
+    for (int i = 0; i < inFlightCount; i++) {
+      ThermalTank tank = inFlight[i];
+      inFlight[i] = null;
+      // Tanks unregistered since were finished as they left.
+      if (tank.inFlight)
+        publish(tank);
+    }
+    inFlightCount = 0;
+  }
+
+  /**
+   * Waits for the step in flight for one tank, which is leaving the scheduler, and merges it in ahead of the rest.
+   */
+  private void finish(ThermalTank tank) {
+    // Null while publish is already merging the batch in, whose steps have all finished.
+    if (computing != null)
+      computing.join();
+    publish(tank);
+  }
+
+  private void publish(ThermalTank tank) {
+    tank.inFlight = false;
+    tank.lastStep = inFlightTick;
+    tank.publishBuffered();
+  }
+
+  private void step(int count, long now) {
+    if (offThread) {
+      capture(count, now);
+      return;
+    }
+    if (count < PARALLEL_THRESHOLD)
+      for (int i = 0; i < count; i++)
+        batch[i].stepThermal(batch[i].elapsed);
+    else
+      pool().invoke(new StepTask(batch, 0, count, null));
+
+    ThermalLod lod = ThermalLod.current();
+    for (int i = 0; i < count; i++) {
+      ThermalTank tank = batch[i];
+      batch[i] = null;
+      tank.lastStep = now;
+      tank.nextStep = now + lod.interval(nearestPlayerSq(tank.position()));
+      tank.publishThermal();
+    }
+  }
+
+  private void capture(int count, long now) {
+    if (inFlightCount + count > inFlight.length)
+      inFlight = Arrays.copyOf(inFlight, Math.max(inFlight.length * 2, inFlightCount + count));
+    ThermalLod lod = ThermalLod.current();
+    for (int i = 0; i < count; i++) {
+      ThermalTank tank = batch[i];
+      batch[i] = null;
+      tank.captureThermal();
+      tank.inFlight = true;
+      tank.nextStep = now + lod.interval(nearestPlayerSq(tank.position()));
+      inFlight[inFlightCount++] = tank;
+    }
+    inFlightTick = now;
+  }
+
+  private int layers() {
+    int layers = 0;
+    for (ThermalTank tank : tanks)
+      for (int i = 0; i < tank.getTanks(); i++)
+        layers += tank.layers(i);
+    return layers;
+  }
+
+  /**
+   * @return The squared distance from the nearest player to the nearest point of the section holding the position.
+   * Tanks in a section share one figure, which never puts a tank further away than it is.
+   */
+  private double nearestPlayerSq(BlockPos pos) {
+    if (pos == null)
+      return Double.POSITIVE_INFINITY;
+    if (distancesTick != currentTick) {
+      sectionDistances.clear();
+      distancesTick = currentTick;
+    }
+    int sectionX = pos.getX() >> 4;
+    int sectionY = pos.getY() >> 4;
+    int sectionZ = pos.getZ() >> 4;
+    long key = section.setPos(sectionX, sectionY, sectionZ).toLong();
+    if (sectionDistances.containsKey(key))
+      return sectionDistances.get(key);
+    double nearest = Double.POSITIVE_INFINITY;
+    for (PlayerEntity player : world.getPlayers()) {
+      double dx = outside(player.getPosX(), sectionX);
+      double dy = outside(player.getPosY(), sectionY);
+      double dz = outside(player.getPosZ(), sectionZ);
+      nearest = Math.min(nearest, dx * dx + dy * dy + dz * dz);
+    }
+    sectionDistances.put(key, nearest);
+    return nearest;
+  }
+
+  /**
+   * @return How far a coordinate lies outside a section along one axis, or 0 if it lies within it
+   */
+  private static double outside(double coordinate, int section) {
+    double low = section << 4;
+    return Math.max(0, Math.max(low - coordinate, coordinate - (low + 16)));
+  }
+
+  private static synchronized ForkJoinPool pool() {
+    if (pool == null)
+      pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), p -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+        thread.setName("BoilBubble Thermal " + thread.getPoolIndex());
+        thread.setContextClassLoader(ThermalScheduler.class.getClassLoader());
+        return thread;
+      }, null, false);
+    return pool;
+  }
+
+  /**
+   * Steps a range of tanks in place, or computes their captured buffers if given somewhere to add the time it took.
+   */
+  private static class StepTask extends RecursiveAction {
+    private final ThermalTank[] tanks;
+    private final int from;
+    private final int to;
+    private final LongAdder spent;
+
+    private StepTask(ThermalTank[] tanks, int from, int to, LongAdder spent) {
+      this.tanks = tanks;
+      this.from = from;
+      this.to = to;
+      this.spent = spent;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= BATCH_SIZE) {
+        if (spent == null) {
+          for (int i = from; i < to; i++)
+            tanks[i].stepThermal(tanks[i].elapsed);
+          return;
+        }
+        long start = System.nanoTime();
+        for (int i = from; i < to; i++)
+          tanks[i].computeThermal(tanks[i].elapsed);
+        spent.add(System.nanoTime() - start);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new StepTask(tanks, from, middle, spent), new StepTask(tanks, middle, to, spent));
+    }
+  }
+}
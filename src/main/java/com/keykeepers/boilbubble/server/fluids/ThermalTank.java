@@ -1,10 +1,14 @@
 package com.keykeepers.boilbubble.server.fluids;
 
+import com.keykeepers.boilbubble.server.fluids.sim.LayerStack;
+import com.keykeepers.boilbubble.server.fluids.sim.ThermalBuffer;
+import com.keykeepers.boilbubble.server.fluids.sim.ThermalKernel;
+import com.keykeepers.boilbubble.server.metrics.FlightEvents;
+import com.keykeepers.boilbubble.server.metrics.Metrics;
 import net.minecraft.fluid.Fluid;
-import net.minecraftforge.fluids.FluidStack;
+import net.minecraft.nbt.CompoundNBT;
 
 import javax.annotation.Nonnull;
-import java.util.HashMap;
 
 /**
  * A ThermalTank extends the functionality of FractionalTank to add temperature changes to its fluids. The enclosing
@@ -35,9 +39,32 @@ import java.util.HashMap;
  *
  * Where 'T1' and 'C1' are the temperature and thermal conductivity of the first material, and 'T2' and 'C2' are the
  * temperature and conductivity of the material that is tested against.
+ *
+ * Each fluid's specific heat and conductivity come from data; see {@link FluidPropertyLoader}. So do its boiling and
+ * freezing points and what it turns into past them. Layers that pass one change phase as the step is published, with
+ * latent heat; see {@link ThermalKernel#changePhases}.
+ *
+ * The exchange itself is run by a {@link ThermalKernel} per tank, which knows nothing of Forge; this class ties the
+ * kernels to the tank's layers, its listeners and the {@link ThermalScheduler}.
  */
 public abstract class ThermalTank extends FractionalTank {
-  private final TankThermals[] tankThermals;
+  private final ThermalKernel[] kernels;
+  private final ThermalKernel.PhaseConverter[] converters;
+  // Created the first time the scheduler computes this tank off the server thread.
+  private ThermalBuffer[] buffers;
+  // Set while the tank is registered with a scheduler; scheduled marks it as being in the scheduler's active list.
+  ThermalScheduler scheduler;
+  boolean scheduled;
+  // The game time the live thermal state is current to while scheduled. A step computed off the server thread only
+  // moves it on once the step is published.
+  long lastStep;
+  long nextStep;
+  int elapsed;
+  // Set from when the scheduler captures a step to compute off the server thread until the step is published.
+  boolean inFlight;
+  // The game time the thermal state was current to when the tank was last unregistered or loaded, so that it can
+  // catch up on the gap once registered again; -1 if not known.
+  long pausedAt = -1;
 
   public ThermalTank(int tanks, int[] capacities, int[] thermalConductivities) {
     super(tanks, capacities);
@@ -50,10 +77,19 @@ public abstract class ThermalTank extends FractionalTank {
     else if (thermalConductivities.length != tanks)
       throw new IllegalArgumentException("Moust provide no thermal conductivities, one conductivity or as many as tanks.");
 
-    tankThermals = new TankThermals[tanks];
+    kernels = new ThermalKernel[tanks];
+    converters = new ThermalKernel.PhaseConverter[tanks];
     for (int i = 0; i < tanks; i++) {
-      tankThermals[i] = new TankThermals(i,
-          generalThermConduc == -1 ? thermalConductivities[i] : generalThermConduc);
+      int conductivity = generalThermConduc == -1 ? thermalConductivities[i] : generalThermConduc;
+      if (conductivity < 1)
+        throw new IllegalArgumentException("Tank " + i + " thermal conductivity must be positive.");
+      kernels[i] = new ThermalKernel(layerStack(i), conductivity);
+      int tank = i;
+      converters[i] = (fromFluid, intoFluid, amount) -> {
+        int converted = convert(tank, fromFluid, intoFluid, amount);
+        Metrics.phaseChange(converted);
+        return converted;
+      };
     }
   }
 
@@ -61,117 +97,331 @@ public abstract class ThermalTank extends FractionalTank {
     this(tanks, capacities, null);
   }
 
-  public final int targetTemperature(int tank) { return tankThermals[tank].targetTemperature; }
+  public final int targetTemperature(int tank) { return kernels[tank].targetTemperature(); }
 
   public final ThermalTank targetTemperature(int tank, int temperature) {
-    tankThermals[tank].targetTemperature = temperature;
+    if (kernels[tank].targetTemperature(temperature)) {
+      wake();
+      markChanged(tank, 0);
+    }
     return this;
   }
 
+  /**
+   * A tank goes dormant once a tick passes in which no energy moves anywhere in it, and stays dormant until its target
+   * temperature changes or fluid is added or removed. Dormant tanks are skipped entirely when ticking.
+   *
+   * @return true if every tank is dormant
+   */
+  public final boolean isDormant() {
+    for (ThermalKernel kernel : kernels)
+      if (!kernel.isDormant())
+        return false;
+    return true;
+  }
+
+  public final boolean isDormant(int tank) { return kernels[tank].isDormant(); }
+
+  private void wake() {
+    if (scheduler != null)
+      scheduler.wake(this);
+  }
+
   public final int currentTemperature(int tank) {
-    return tankThermals[tank].currentTemperature();
+    return kernels[tank].shellTemperature();
   }
 
   public final int fluidTemperature(int tank, @Nonnull Fluid fluid) {
-    if (!tankThermals[tank].containsKey(fluid))
+    int layer = layerOf(tank, fluid);
+    if (layer < 0)
       throw new IllegalArgumentException(fluid.toString() + " not present in tank " + tank);
-    double defaultTemperature = fluid.getAttributes().getTemperature();
-    double thermalEnergy = tankThermals[tank].get(fluid);
-    int count = getFluidStack(tank, fluid).getAmount();
-    return (int) (thermalEnergy / count + defaultTemperature);
+    return kernels[tank].temperature(layer);
+  }
+
+  @Override
+  public final int layerTemperature(int tank, int layer) {
+    if (layer < 0 || layer >= layers(tank))
+      throw new IndexOutOfBoundsException("Layer " + layer + " is not present in tank " + tank);
+    return kernels[tank].temperature(layer);
   }
 
   public final float fluidConductivity(Fluid fluid) {
-    // TODO
-    return 1.0f;
+    return FluidIds.properties().conductivity(FluidIds.id(fluid));
   }
 
+  /**
+   * Runs one tick of thermal exchange for every tank and notifies listeners of whatever changed. Tanks registered
+   * with a {@link ThermalScheduler} are ticked by it and should not also call this.
+   */
   public final void processThermal() {
-    for (int i = 0; i < getTanks(); i++) {
-      TankThermals thermal = tankThermals[i];
-
-      // External to tank
-      int tankTemperature = thermal.currentTemperature();
-      if (tankTemperature != thermal.targetTemperature) {
-        int difference = thermal.targetTemperature - tankTemperature;
-        int energyChange = (int) (difference * thermal.conductivity);
-        int maxChange = difference * thermal.tankShell;
-        if (tankTemperature < thermal.targetTemperature)
-          thermal.tankThermalEnergy += Math.min(Math.max(energyChange, 1), maxChange);
-        else
-          thermal.tankThermalEnergy += Math.max(Math.min(energyChange, -1), maxChange);
-      }
+    processThermal(1);
+  }
 
-      FluidStack[] contents = contents(i);
-      tankTemperature = thermal.currentTemperature();
+  /**
+   * Runs thermal exchange covering several ticks in one step, for tanks that are ticked less often than every tick.
+   * Each exchange moves as much energy as the given number of ticks would, but never more than it takes to bring
+   * both sides to the same temperature, so long steps settle rather than overshoot. Steps longer than
+   * {@link ThermalKernel#FAST_FORWARD_MIN_TICKS} are covered by {@link ThermalKernel#fastForward(long)} instead.
+   */
+  public final void processThermal(int elapsedTicks) {
+    stepThermal(elapsedTicks);
+    publishThermal();
+  }
+
+  /**
+   * Runs one tick of thermal exchange without notifying anyone. This only touches the tank's own state, so steps for
+   * different tanks may safely run on different threads. Changes are held until {@link #publishThermal()}.
+   */
+  final void stepThermal(int elapsedTicks) {
+    Object event = FlightEvents.beginThermalStep();
+    long energy = event == null ? 0 : thermalEnergy();
+    for (ThermalKernel kernel : kernels)
+      if (elapsedTicks > ThermalKernel.FAST_FORWARD_MIN_TICKS)
+        kernel.fastForward(elapsedTicks);
+      else
+        kernel.step(elapsedTicks);
+    if (event != null)
+      FlightEvents.endThermalStep(event, position(), totalLayers(), thermalEnergy() - energy, elapsedTicks, false);
+  }
 
-      // Tank to first fluid
-      if (thermal.size() < 1)
+  /**
+   * Carries out any changes of phase and notifies listeners of the changes made by {@link #stepThermal(int)}. Must
+   * be called on the thread that owns the tank.
+   */
+  final void publishThermal() {
+    for (int i = 0; i < kernels.length; i++) {
+      ThermalKernel kernel = kernels[i];
+      if (kernel.phaseChangePending())
+        kernel.changePhases(converters[i]);
+      if (!kernel.changed())
         continue;
-      Fluid priorFluid = contents[0].getFluid();
-      int priorFluidTemperature = fluidTemperature(i, priorFluid);
-      if (priorFluidTemperature != tankTemperature) {
-        int difference = tankTemperature - priorFluidTemperature;
-        int energyChange = (int) (difference * (thermal.conductivity + fluidConductivity(priorFluid)) / 2);
-        int fluidThermalEnergy = thermal.get(priorFluid);
-        int actualChange;
-        if (priorFluidTemperature < tankTemperature)
-          actualChange = Math.max(energyChange, 1);
-        else
-          actualChange = Math.min(energyChange, -1);
-        fluidThermalEnergy += actualChange;
-        thermal.put(priorFluid, fluidThermalEnergy);
-        thermal.tankThermalEnergy -= actualChange;
+      long changedLayers = kernel.changedLayers();
+      kernel.clearChanged();
+      markChanged(i, changedLayers);
+    }
+  }
+
+  /**
+   * Copies the thermal state of every tank into its back buffer, ready for {@link #computeThermal(int)}. Must be
+   * called on the thread that owns the tank.
+   */
+  final void captureThermal() {
+    if (buffers == null) {
+      buffers = new ThermalBuffer[kernels.length];
+      for (int i = 0; i < kernels.length; i++)
+        buffers[i] = new ThermalBuffer(kernels[i]);
+    }
+    for (ThermalBuffer buffer : buffers)
+      buffer.capture();
+  }
+
+  /**
+   * Steps the captured copies. This touches neither the live tank nor its listeners, so it may run on any thread
+   * while the tank is being filled, drained and read.
+   */
+  final void computeThermal(int elapsedTicks) {
+    Object event = FlightEvents.beginThermalStep();
+    for (ThermalBuffer buffer : buffers)
+      buffer.compute(elapsedTicks);
+    if (event != null) {
+      // The live tank may be changing on the server thread meanwhile, so describe the captured copies instead.
+      int layers = 0;
+      long energyDelta = 0;
+      for (ThermalBuffer buffer : buffers) {
+        layers += buffer.layers();
+        energyDelta += buffer.energyDelta();
       }
+      FlightEvents.endThermalStep(event, position(), layers, energyDelta, elapsedTicks, true);
+    }
+  }
+
+  /**
+   * Merges the computed step into the live tank and notifies listeners. Must be called on the thread that owns the
+   * tank, once {@link #computeThermal(int)} has finished.
+   */
+  final void publishBuffered() {
+    for (ThermalBuffer buffer : buffers)
+      buffer.publish();
+    publishThermal();
+  }
+
+  /**
+   * Advances every tank by the given number of ticks at once, for catching up after a chunk was unloaded or the
+   * server fell behind. See {@link ThermalKernel#fastForward(long, ThermalKernel.PhaseConverter)} for how long gaps are
+   * covered without stepping each tick.
+   */
+  public final void fastForward(long ticks) {
+    // On the owning thread, so fluid changes phase tick by tick through the gap rather than all at once after it.
+    for (int i = 0; i < kernels.length; i++)
+      kernels[i].fastForward(ticks, converters[i]);
+    publishThermal();
+  }
+
+  /**
+   * Fast-forwards over the time since the state was last current, if it is known, as when a saved tank is loaded
+   * into a world that has moved on.
+   */
+  final void catchUp(long now) {
+    long from = pausedAt;
+    pausedAt = -1;
+    if (from >= 0 && now > from)
+      fastForward(now - from);
+  }
+
+  /**
+   * @return The game time the thermal state is current to, or -1 if it is not known
+   */
+  final long stateTime() {
+    if (scheduler == null)
+      return pausedAt;
+    return scheduled ? lastStep : scheduler.now();
+  }
 
-      // Iterate up through fluids in the tank
-      priorFluidTemperature = fluidTemperature(i, priorFluid);
-      for (int j = 1; j < contents.length; j++) {
-        Fluid nextFluid = contents[j].getFluid();
-        int nextFluidTemperature = fluidTemperature(i, nextFluid);
-        int difference = priorFluidTemperature - nextFluidTemperature;
-        int energyChange = (int) (difference * (fluidConductivity(priorFluid) + fluidConductivity(nextFluid)) / 2);
-        int priorThermalEnergy = thermal.get(priorFluid);
-        int nextThermalEnergy = thermal.get(nextFluid);
-        int actualChange;
-        if (nextFluidTemperature < priorFluidTemperature)
-          actualChange = Math.max(energyChange, 1);
-        else
-          actualChange = Math.min(energyChange, -1);
-        nextThermalEnergy += actualChange;
-        thermal.put(nextFluid, nextThermalEnergy);
-        priorThermalEnergy -= actualChange;
-        thermal.put(priorFluid, priorThermalEnergy);
-        priorFluid = nextFluid;
-        priorFluidTemperature = fluidTemperature(i, priorFluid);
+  /**
+   * Saves each tank's target temperature and shell energy, the energy of every layer in the same order as the
+   * layers themselves, and the game time all of it is current to.
+   */
+  @Override
+  protected void writeExtra(CompoundNBT nbt) {
+    int[] targets = new int[kernels.length];
+    long[] shells = new long[kernels.length];
+    long[] energies = new long[totalLayers()];
+    int k = 0;
+    for (int i = 0; i < kernels.length; i++) {
+      ThermalKernel kernel = kernels[i];
+      targets[i] = kernel.targetTemperature();
+      shells[i] = kernel.shellEnergy();
+      for (int layer = 0; layer < layers(i); layer++)
+        energies[k++] = kernel.energy(layer);
+    }
+    nbt.putIntArray("Targets", targets);
+    nbt.putLongArray("Shells", shells);
+    nbt.putLongArray("Energies", energies);
+    long time = stateTime();
+    if (time >= 0)
+      nbt.putLong("Time", time);
+  }
+
+  @Override
+  protected void readExtra(CompoundNBT nbt, int[] counts, int[] placed) {
+    int[] targets = nbt.getIntArray("Targets");
+    long[] shells = nbt.getLongArray("Shells");
+    long[] energies = nbt.getLongArray("Energies");
+    int[] amounts = nbt.getIntArray("Amounts");
+    int k = 0;
+    for (int i = 0; i < kernels.length; i++) {
+      ThermalKernel kernel = kernels[i];
+      if (i < targets.length)
+        targetTemperature(i, targets[i]);
+      kernel.restore(i < shells.length ? shells[i] : 0);
+      int count = i < counts.length ? counts[i] : 0;
+      for (int layer = 0; layer < count && k < placed.length; layer++, k++) {
+        int restored = placed[k];
+        if (restored < 0 || k >= energies.length || k >= amounts.length)
+          continue;
+        // A layer cut short to fit the tank keeps the temperature it was saved at.
+        int amount = layerAmount(i, restored);
+        long energy = amount < amounts[k] ? energies[k] * amount / amounts[k] : energies[k];
+        kernel.restore(restored, energy);
       }
+      markChanged(i, TankListener.layersFrom(0));
+    }
+    pausedAt = nbt.contains("Time") ? nbt.getLong("Time") : -1;
+    if (scheduler != null)
+      catchUp(scheduler.now());
+    wake();
+  }
 
-      // Process water and aqueous solution states.
-      // TODO
+  @Override
+  void scaleExtra(CompoundNBT nbt, long from, long to, long whole, int[] layersFrom, int[] layersTo, int[] amounts) {
+    nbt.putLongArray("Shells", share(nbt.getLongArray("Shells"), from, to, whole));
+    // Each cut of a layer takes the layer's energy in proportion, so it keeps the layer's temperature.
+    long[] energies = nbt.getLongArray("Energies");
+    long[] scaled = new long[energies.length];
+    for (int k = 0; k < energies.length && k < amounts.length; k++)
+      scaled[k] = share(energies[k], layersFrom[k], layersTo[k], amounts[k]);
+    nbt.putLongArray("Energies", scaled);
+  }
+
+  /**
+   * Moves a share of every layer in one tank into a tank of another holder, along with the layer's thermal energy
+   * and dissolved solutes in the same proportion, so that what moves keeps its temperature. Shares are sized by
+   * {@link LayerStack#shares}, so what stays behind fits in the rest of the whole, and only as much as fits is moved.
+   *
+   * @return The amount moved
+   */
+  final int transfer(int tank, ThermalTank into, int intoTank, int part, int whole) {
+    // Moving layers out reorders the rest, so note the fluids first and find each again as its turn comes.
+    LayerStack stack = layerStack(tank);
+    int[] fluids = new int[stack.layers()];
+    int[] shares = new int[fluids.length];
+    for (int layer = 0; layer < fluids.length; layer++)
+      fluids[layer] = stack.fluid(layer);
+    stack.shares(part, whole, shares);
+    ThermalKernel kernel = kernels[tank];
+    ThermalKernel intoKernel = into.kernels[intoTank];
+    int moved = 0;
+    for (int k = 0; k < fluids.length; k++) {
+      int fluid = fluids[k];
+      int share = shares[k];
+      if (share < 1)
+        continue;
+      int layer = stack.indexOf(fluid);
+      long energy = kernel.energy(layer);
+      int movedAmount = moveFluid(tank, fluid, share, into, intoTank);
+      if (movedAmount < 1)
+        continue;
+      int left = stack.indexOf(fluid);
+      long carried = energy - (left < 0 ? 0 : kernel.energy(left));
+      int arrived = into.layerStack(intoTank).indexOf(fluid);
+      intoKernel.restore(arrived, intoKernel.energy(arrived) + carried);
+      moved += movedAmount;
     }
+    if (moved > 0) {
+      into.markChanged(intoTank, TankListener.layersFrom(0));
+      into.wake();
+    }
+    return moved;
   }
 
-  private class TankThermals extends HashMap<Fluid, Integer> {
-    private int targetTemperature;
-    private int tankThermalEnergy;
-    private final int tankShell;
-    private final float conductivity;
+  /**
+   * Sets the temperature of a tank's walls, as when the tank is rebuilt at another size.
+   */
+  final void shellTemperature(int tank, int temperature) {
+    kernels[tank].shellTemperature(temperature);
+    wake();
+    markChanged(tank, 0);
+  }
 
-    private TankThermals(int tank, int conductivity) {
-      if (conductivity < 1)
-        throw new IllegalArgumentException("Tank " + tank + " thermal conductivity must be positive.");
-      targetTemperature = 300;
-      this.conductivity = conductivity;
+  @Override
+  long thermalEnergy() {
+    long energy = 0;
+    for (ThermalKernel kernel : kernels)
+      energy += kernel.totalEnergy();
+    return energy;
+  }
 
-      // Estimated volume of tank exterior for calculation purposes
-      // Assume a cube that can enclose the capacity.
-      int capacity = getTankCapacity(tank);
-      double length = Math.pow(capacity, 1.0 / 3.0) / 0.95;
-      tankShell = (int) (Math.pow(length, 3) - capacity);
+  @Override
+  protected void layerInserted(int tank, int layer, Fluid fluid) {
+    kernels[tank].inserted(layer);
+    wake();
+  }
 
-      tankThermalEnergy = 0;
-    }
+  @Override
+  protected void layerRemoved(int tank, int layer) {
+    kernels[tank].removed(layer);
+    wake();
+  }
+
+  @Override
+  protected void layerMoved(int tank, int from, int to) {
+    kernels[tank].moved(from, to);
+    wake();
+  }
 
-    private int currentTemperature() { return 300 + tankThermalEnergy / tankShell; }
+  @Override
+  protected void layerResized(int tank, int layer, int oldAmount, int newAmount) {
+    kernels[tank].resized(layer, oldAmount, newAmount);
+    wake();
   }
 }
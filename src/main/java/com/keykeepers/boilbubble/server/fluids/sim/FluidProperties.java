@@ -0,0 +1,64 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+/**
+ * The fluid properties the simulation needs, looked up by compact fluid id. Implementations should answer from
+ * precomputed tables; these are read whenever a layer is created.
+ */
+public interface FluidProperties {
+  int density(int fluid);
+
+  /**
+   * @return The temperature, in kelvin, of the fluid when it holds no thermal energy of its own
+   */
+  int temperature(int fluid);
+
+  float conductivity(int fluid);
+
+  /**
+   * @return The energy it takes to warm one mB of the fluid by one kelvin
+   */
+  float specificHeat(int fluid);
+
+  /**
+   * @return The temperature, in kelvin, at which the fluid boils, or Integer.MAX_VALUE if it never does
+   */
+  int boilingPoint(int fluid);
+
+  /**
+   * @return The temperature, in kelvin, at which the fluid freezes, or Integer.MIN_VALUE if it never does
+   */
+  int freezingPoint(int fluid);
+
+  /**
+   * @return The fluid this one turns into above its boiling point, or -1 if it stays as it is
+   */
+  int boilsInto(int fluid);
+
+  /**
+   * @return The fluid this one turns into below its freezing point, or -1 if it stays as it is. For a gas this is
+   * the liquid it condenses into.
+   */
+  int freezesInto(int fluid);
+
+  /**
+   * @return The energy each mB takes in as it boils
+   */
+  float boilingHeat(int fluid);
+
+  /**
+   * @return The energy each mB gives out as it freezes or condenses
+   */
+  float freezingHeat(int fluid);
+
+  /**
+   * @return The density of a solute, by compact solute id. A layer's density is the average of its fluid's and those
+   * of its solutes, weighted by amount.
+   */
+  int soluteDensity(int solute);
+
+  /**
+   * @return A number that changes whenever the values for fluids already seen change, so that copies taken from them
+   * can be refreshed
+   */
+  int generation();
+}
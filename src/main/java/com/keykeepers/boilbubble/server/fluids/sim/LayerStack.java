@@ -0,0 +1,421 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+import java.util.Arrays;
+
+/**
+ * The fluid layers of a single tank, independent of any game objects. Fluids are identified by compact integer ids
+ * and described by a {@link FluidProperties} table.
+ *
+ * Layers are held in parallel arrays ordered from the bottom of the tank to the top: heaviest fluid first, with
+ * fluids of equal density ordered by fluid id so that they never share a slot. The arrays only grow when the stack
+ * holds more distinct fluids than it ever has before, so filling and draining existing layers allocates nothing.
+ *
+ * A layer may also hold {@link Solutes} dissolved in its fluid. They travel with the fluid in proportion on every fill
+ * and drain, and weigh into the layer's density by how much of each it holds, so a layer may move past its neighbours
+ * as its composition changes. A mixture of any number of species is thus one layer of its solvent rather than one
+ * fluid per combination.
+ */
+public final class LayerStack {
+  private static final int INITIAL_LAYERS = 4;
+
+  private final FluidProperties properties;
+  private final int capacity;
+  private int[] fluids = new int[INITIAL_LAYERS];
+  private int[] densities = new int[INITIAL_LAYERS];
+  private int[] amounts = new int[INITIAL_LAYERS];
+  // Null, or possibly empty, for layers holding nothing dissolved.
+  private Solutes[] solutes = new Solutes[INITIAL_LAYERS];
+  private int layers = 0;
+  private int total = 0;
+  private Observer observer;
+
+  public LayerStack(FluidProperties properties, int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Capacity must be a positive value");
+    this.properties = properties;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Sets the one observer told about layer changes, replacing any before it.
+   */
+  public void observe(Observer observer) { this.observer = observer; }
+
+  public FluidProperties properties() { return properties; }
+
+  public int capacity() { return capacity; }
+
+  public int layers() { return layers; }
+
+  public int total() { return total; }
+
+  public int fluid(int layer) {
+    if (layer < 0 || layer >= layers)
+      throw new IndexOutOfBoundsException("Layer " + layer + " is not present");
+    return fluids[layer];
+  }
+
+  public int amount(int layer) {
+    if (layer < 0 || layer >= layers)
+      throw new IndexOutOfBoundsException("Layer " + layer + " is not present");
+    return amounts[layer];
+  }
+
+  /**
+   * @return What is dissolved in a layer, or null if nothing ever has been; callers must not modify it
+   */
+  public Solutes solutes(int layer) {
+    if (layer < 0 || layer >= layers)
+      throw new IndexOutOfBoundsException("Layer " + layer + " is not present");
+    return solutes[layer];
+  }
+
+  /**
+   * @return The density of a layer, weighing in whatever is dissolved in it
+   */
+  public int density(int layer) {
+    if (layer < 0 || layer >= layers)
+      throw new IndexOutOfBoundsException("Layer " + layer + " is not present");
+    return densities[layer];
+  }
+
+  /**
+   * Makes this stack a copy of another of the same capacity, without telling the observer. Layer densities are
+   * copied, but what is dissolved in the layers is not.
+   */
+  public void copyFrom(LayerStack other) {
+    if (other.capacity != capacity)
+      throw new IllegalArgumentException("Cannot copy a stack of a different capacity");
+    if (other.layers > fluids.length) {
+      fluids = new int[other.fluids.length];
+      densities = new int[other.fluids.length];
+      amounts = new int[other.fluids.length];
+      solutes = new Solutes[other.fluids.length];
+    }
+    System.arraycopy(other.fluids, 0, fluids, 0, other.layers);
+    System.arraycopy(other.densities, 0, densities, 0, other.layers);
+    System.arraycopy(other.amounts, 0, amounts, 0, other.layers);
+    Arrays.fill(solutes, 0, Math.max(layers, other.layers), null);
+    layers = other.layers;
+    total = other.total;
+  }
+
+  // For the thermal kernel's inner loop; valid up to layers() and replaced when the stack grows.
+  int[] rawAmounts() { return amounts; }
+
+  /**
+   * @return The layer holding the fluid, or -1 if there is none
+   */
+  public int indexOf(int fluid) {
+    for (int i = 0; i < layers; i++)
+      if (fluids[i] == fluid)
+        return i;
+    return -1;
+  }
+
+  public int amountOf(int fluid) {
+    int layer = indexOf(fluid);
+    return layer < 0 ? 0 : amounts[layer];
+  }
+
+  /**
+   * Works out how much of each layer goes with part of the capacity when the stack is shared out, as when a pooled
+   * tank splits. Each share is the layer's amount in proportion to the part, rounded down, except that where the
+   * rounding would leave more behind than fits in the rest of the capacity, as many shares as it takes are rounded up
+   * instead, from the bottom. So long as the stack holds no more than the whole, the shares add up to no more than
+   * the part and what is left fits in the rest.
+   *
+   * @param part The capacity taking its share
+   * @param whole The capacity the stack is shared across
+   * @param shares Receives each layer's share, counted up from the bottom
+   */
+  public void shares(int part, int whole, int[] shares) {
+    if (part < 0 || whole < 1 || part > whole)
+      throw new IllegalArgumentException("Cannot take " + part + " of " + whole + ".");
+    shares(amounts, layers, total, part, whole, shares);
+  }
+
+  /**
+   * Slices every layer among parts of the capacity, for sharing the whole stack out at once, as when a pooled tank is
+   * saved a member at a time. Each part takes its {@link #shares} of what the parts before it left, so no part is
+   * given more than its capacity holds and the slices of every layer add up to the layer exactly.
+   *
+   * @param parts The capacity of each part, in order; together they must make up the stack's capacity
+   * @return For each part, where its slice of each layer starts, counted up from the bottom, and after them a row of
+   * the layers' amounts, where the last part's slices end
+   */
+  public int[][] slices(int[] parts) {
+    long whole = 0;
+    for (int part : parts) {
+      if (part < 0)
+        throw new IllegalArgumentException("Parts must not be negative.");
+      whole += part;
+    }
+    if (whole != capacity)
+      throw new IllegalArgumentException("Parts make up " + whole + " of a capacity of " + capacity + ".");
+    int[][] slices = new int[parts.length + 1][layers];
+    int[] left = Arrays.copyOf(amounts, layers);
+    int[] shares = new int[layers];
+    int leftTotal = total;
+    for (int i = 0; i < parts.length; i++) {
+      shares(left, layers, leftTotal, parts[i], (int) whole, shares);
+      for (int layer = 0; layer < layers; layer++) {
+        slices[i + 1][layer] = slices[i][layer] + shares[layer];
+        left[layer] -= shares[layer];
+        leftTotal -= shares[layer];
+      }
+      whole -= parts[i];
+    }
+    return slices;
+  }
+
+  private static void shares(int[] amounts, int layers, int total, int part, int whole, int[] shares) {
+    long taken = 0;
+    for (int i = 0; i < layers; i++) {
+      shares[i] = whole == 0 ? 0 : (int) ((long) amounts[i] * part / whole);
+      taken += shares[i];
+    }
+    long over = total - taken - (whole - part);
+    for (int i = 0; i < layers && over > 0; i++)
+      if ((long) shares[i] * whole < (long) amounts[i] * part) {
+        shares[i]++;
+        over--;
+      }
+  }
+
+  /**
+   * @return The amount filled, or that would be filled if not executing
+   */
+  public int fill(int fluid, int amount, boolean execute) {
+    return fill(fluid, amount, null, execute);
+  }
+
+  /**
+   * @param dissolved What is dissolved in the whole amount offered, or null for none. When executing, the share that
+   * goes with the amount filled is moved out of it into the layer, so it is left holding the share of what did not fit.
+   * @return The amount filled, or that would be filled if not executing
+   */
+  public int fill(int fluid, int amount, Solutes dissolved, boolean execute) {
+    int fillAmount = Math.min(amount, capacity - total);
+    if (fillAmount < 1)
+      return 0;
+    if (execute) {
+      int layer = indexOf(fluid);
+      if (layer < 0) {
+        layer = insert(fluid, properties.density(fluid));
+        if (observer != null)
+          observer.inserted(layer);
+      }
+      amounts[layer] += fillAmount;
+      total += fillAmount;
+      if (observer != null)
+        observer.resized(layer, amounts[layer] - fillAmount, amounts[layer]);
+      if (dissolved != null && !dissolved.isEmpty()) {
+        if (solutes[layer] == null)
+          solutes[layer] = new Solutes();
+        dissolved.split(fillAmount, amount, solutes[layer]);
+      }
+      if (isSolution(layer))
+        reorder(layer);
+    }
+    return fillAmount;
+  }
+
+  /**
+   * @return The amount drained, or that would be drained if not executing
+   */
+  public int drain(int fluid, int amount, boolean execute) {
+    return drain(fluid, amount, null, execute);
+  }
+
+  /**
+   * @param into Receives the share of what is dissolved in the layer that goes with the amount drained, or would go
+   * if not executing; if null, that share is drained away all the same
+   * @return The amount drained, or that would be drained if not executing
+   */
+  public int drain(int fluid, int amount, Solutes into, boolean execute) {
+    int layer = indexOf(fluid);
+    if (layer < 0 || amount < 1)
+      return 0;
+    int drainAmount = Math.min(amount, amounts[layer]);
+    if (!execute && into != null && solutes[layer] != null)
+      solutes[layer].share(drainAmount, amounts[layer], into);
+    if (execute) {
+      if (solutes[layer] != null)
+        solutes[layer].split(drainAmount, amounts[layer], into);
+      total -= drainAmount;
+      if (drainAmount == amounts[layer]) {
+        remove(layer);
+        if (observer != null)
+          observer.removed(layer);
+      } else {
+        amounts[layer] -= drainAmount;
+        if (observer != null)
+          observer.resized(layer, amounts[layer] + drainAmount, amounts[layer]);
+        if (isSolution(layer))
+          reorder(layer);
+      }
+    }
+    return drainAmount;
+  }
+
+  /**
+   * Turns some of one fluid into another in place, as when it changes phase. What is dissolved stays in what is
+   * left of the first fluid, and passes to the product only once none of the first is left, so nothing dissolved is
+   * ever lost.
+   *
+   * @return The amount converted
+   */
+  public int convert(int fromFluid, int intoFluid, int amount) {
+    int layer = indexOf(fromFluid);
+    if (layer < 0 || amount < 1)
+      return 0;
+    int converted = Math.min(amount, amounts[layer]);
+    Solutes held = solutes[layer];
+    solutes[layer] = null;
+    drain(fromFluid, converted, null, true);
+    fill(intoFluid, converted, null, true);
+    if (held == null)
+      return converted;
+    // Even with nothing left in it, what was dissolved may still weigh in the layer's density, so the keeper's is
+    // always worked out afresh.
+    int keeper = indexOf(fromFluid);
+    if (keeper < 0)
+      keeper = indexOf(intoFluid);
+    if (solutes[keeper] == null)
+      solutes[keeper] = held;
+    else
+      solutes[keeper].addAll(held);
+    reorder(keeper);
+    return converted;
+  }
+
+  private boolean isSolution(int layer) {
+    return solutes[layer] != null && (!solutes[layer].isEmpty() || densities[layer] != properties.density(fluids[layer]));
+  }
+
+  /**
+   * Works out a layer's density afresh from its fluid and what is dissolved in it, as an average weighted by amount,
+   * and moves the layer up or down to keep the stack in order.
+   */
+  private void reorder(int layer) {
+    long mass = (long) properties.density(fluids[layer]) * amounts[layer];
+    long volume = amounts[layer];
+    Solutes dissolved = solutes[layer];
+    for (int i = 0; i < dissolved.size(); i++) {
+      long amount = dissolved.amount(i);
+      mass += properties.soluteDensity(dissolved.id(i)) * amount;
+      volume += amount;
+    }
+    densities[layer] = volume == 0 ? properties.density(fluids[layer]) : (int) (mass / volume);
+    int to = layer;
+    while (to > 0 && below(layer, to - 1))
+      to--;
+    while (to < layers - 1 && below(to + 1, layer))
+      to++;
+    if (to == layer)
+      return;
+    move(layer, to);
+    if (observer != null)
+      observer.moved(layer, to);
+  }
+
+  /**
+   * @return true if layer a belongs below layer b
+   */
+  private boolean below(int a, int b) {
+    return densities[a] > densities[b] || (densities[a] == densities[b] && fluids[a] < fluids[b]);
+  }
+
+  private void move(int from, int to) {
+    int fluid = fluids[from];
+    int density = densities[from];
+    int amount = amounts[from];
+    Solutes dissolved = solutes[from];
+    if (from < to) {
+      System.arraycopy(fluids, from + 1, fluids, from, to - from);
+      System.arraycopy(densities, from + 1, densities, from, to - from);
+      System.arraycopy(amounts, from + 1, amounts, from, to - from);
+      System.arraycopy(solutes, from + 1, solutes, from, to - from);
+    } else {
+      System.arraycopy(fluids, to, fluids, to + 1, from - to);
+      System.arraycopy(densities, to, densities, to + 1, from - to);
+      System.arraycopy(amounts, to, amounts, to + 1, from - to);
+      System.arraycopy(solutes, to, solutes, to + 1, from - to);
+    }
+    fluids[to] = fluid;
+    densities[to] = density;
+    amounts[to] = amount;
+    solutes[to] = dissolved;
+  }
+
+  private int insert(int fluid, int density) {
+    int layer = 0;
+    while (layer < layers && (densities[layer] > density || (densities[layer] == density && fluids[layer] < fluid)))
+      layer++;
+    if (layers == fluids.length) {
+      fluids = Arrays.copyOf(fluids, layers * 2);
+      densities = Arrays.copyOf(densities, layers * 2);
+      amounts = Arrays.copyOf(amounts, layers * 2);
+      solutes = Arrays.copyOf(solutes, layers * 2);
+    }
+    int shift = layers - layer;
+    System.arraycopy(fluids, layer, fluids, layer + 1, shift);
+    System.arraycopy(densities, layer, densities, layer + 1, shift);
+    System.arraycopy(amounts, layer, amounts, layer + 1, shift);
+    System.arraycopy(solutes, layer, solutes, layer + 1, shift);
+    fluids[layer] = fluid;
+    densities[layer] = density;
+    amounts[layer] = 0;
+    solutes[layer] = null;
+    layers++;
+    return layer;
+  }
+
+  private void remove(int layer) {
+    int shift = layers - layer - 1;
+    System.arraycopy(fluids, layer + 1, fluids, layer, shift);
+    System.arraycopy(densities, layer + 1, densities, layer, shift);
+    System.arraycopy(amounts, layer + 1, amounts, layer, shift);
+    System.arraycopy(solutes, layer + 1, solutes, layer, shift);
+    layers--;
+    solutes[layers] = null;
+  }
+
+  /**
+   * Bit n of a layer mask stands for layer n, counting up from the bottom; every layer from the 64th upward shares
+   * the top bit.
+   */
+  public static long layerBit(int layer) { return 1L << Math.min(layer, 63); }
+
+  /**
+   * @return A mask of the layer and every layer above it
+   */
+  public static long layersFrom(int layer) { return -1L << Math.min(layer, 63); }
+
+  /**
+   * Told about changes to a stack's layers as they happen.
+   */
+  public interface Observer {
+    /**
+     * A new, empty layer has been inserted, shifting every layer at or above it up by one.
+     */
+    void inserted(int layer);
+
+    /**
+     * A layer has been drained away completely, shifting every layer above it down by one.
+     */
+    void removed(int layer);
+
+    /**
+     * The amount held by a layer has changed without the layer being added or removed.
+     */
+    void resized(int layer, int oldAmount, int newAmount);
+
+    /**
+     * A layer's density has changed with what is dissolved in it, and it has moved from one place to another,
+     * shifting the layers between by one toward where it was.
+     */
+    void moved(int from, int to);
+  }
+}
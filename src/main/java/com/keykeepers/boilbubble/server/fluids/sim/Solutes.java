@@ -0,0 +1,162 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+import java.util.Arrays;
+
+/**
+ * The substances dissolved in one body of solvent, as a sparse vector of compact solute ids and amounts, kept sorted
+ * by id. Only solutes actually present take up room, so a layer holding two of dozens of known species carries two
+ * entries.
+ *
+ * Amounts are whole units, and splitting a vector in proportion to the solvent that goes with each part rounds every
+ * share down and leaves the remainder behind, so nothing is ever created or lost between the parts.
+ */
+public final class Solutes {
+  private static final int[] NO_IDS = new int[0];
+  private static final long[] NO_AMOUNTS = new long[0];
+
+  private int[] ids = NO_IDS;
+  private long[] amounts = NO_AMOUNTS;
+  private int size = 0;
+
+  public int size() { return size; }
+
+  public boolean isEmpty() { return size == 0; }
+
+  public int id(int index) {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Solute " + index + " is not present");
+    return ids[index];
+  }
+
+  public long amount(int index) {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Solute " + index + " is not present");
+    return amounts[index];
+  }
+
+  public long amountOf(int id) {
+    int index = Arrays.binarySearch(ids, 0, size, id);
+    return index < 0 ? 0 : amounts[index];
+  }
+
+  /**
+   * @return The sum of every solute's amount
+   */
+  public long total() {
+    long total = 0;
+    for (int i = 0; i < size; i++)
+      total += amounts[i];
+    return total;
+  }
+
+  public void clear() { size = 0; }
+
+  public void copyFrom(Solutes other) {
+    if (other.size > ids.length) {
+      ids = new int[other.size];
+      amounts = new long[other.size];
+    }
+    System.arraycopy(other.ids, 0, ids, 0, other.size);
+    System.arraycopy(other.amounts, 0, amounts, 0, other.size);
+    size = other.size;
+  }
+
+  /**
+   * Adds an amount of one solute, or takes it away if negative. A solute whose amount reaches zero is dropped.
+   */
+  public void add(int id, long amount) {
+    if (id < 0)
+      throw new IllegalArgumentException("Solute id must not be negative.");
+    if (amount == 0)
+      return;
+    int index = Arrays.binarySearch(ids, 0, size, id);
+    if (index >= 0) {
+      long updated = amounts[index] + amount;
+      if (updated < 0)
+        throw new IllegalArgumentException("Cannot take more of solute " + id + " than is present.");
+      if (updated == 0)
+        removeAt(index);
+      else
+        amounts[index] = updated;
+      return;
+    }
+    if (amount < 0)
+      throw new IllegalArgumentException("Cannot take more of solute " + id + " than is present.");
+    index = -index - 1;
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+      amounts = Arrays.copyOf(amounts, ids.length);
+    }
+    System.arraycopy(ids, index, ids, index + 1, size - index);
+    System.arraycopy(amounts, index, amounts, index + 1, size - index);
+    ids[index] = id;
+    amounts[index] = amount;
+    size++;
+  }
+
+  /**
+   * Adds everything in another vector to this one, leaving the other as it was.
+   */
+  public void addAll(Solutes other) {
+    for (int i = 0; i < other.size; i++)
+      add(other.ids[i], other.amounts[i]);
+  }
+
+  /**
+   * Takes the share of every solute that goes with part of the solvent holding them, and adds it to another vector.
+   * Each share is rounded down, so what stays behind is never short; taking all of the solvent takes everything.
+   *
+   * @param part How much of the solvent is taken
+   * @param whole How much solvent holds this vector
+   * @param into Receives the shares taken, or null to discard them
+   */
+  public void split(int part, int whole, Solutes into) {
+    if (part < 0 || whole < 1 || part > whole)
+      throw new IllegalArgumentException("Cannot take " + part + " of " + whole + ".");
+    if (part == whole) {
+      if (into != null)
+        into.addAll(this);
+      size = 0;
+      return;
+    }
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      long share = multiplyDivide(amounts[i], part, whole);
+      if (share > 0 && into != null)
+        into.add(ids[i], share);
+      long left = amounts[i] - share;
+      if (left == 0)
+        continue;
+      ids[kept] = ids[i];
+      amounts[kept] = left;
+      kept++;
+    }
+    size = kept;
+  }
+
+  /**
+   * Adds to another vector the shares that {@link #split} would take, leaving this one as it is.
+   */
+  public void share(int part, int whole, Solutes into) {
+    if (part < 0 || whole < 1 || part > whole)
+      throw new IllegalArgumentException("Cannot take " + part + " of " + whole + ".");
+    for (int i = 0; i < size; i++) {
+      long share = part == whole ? amounts[i] : multiplyDivide(amounts[i], part, whole);
+      if (share > 0)
+        into.add(ids[i], share);
+    }
+  }
+
+  private void removeAt(int index) {
+    System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+    System.arraycopy(amounts, index + 1, amounts, index, size - index - 1);
+    size--;
+  }
+
+  /**
+   * @return value * part / whole rounded down; with part no greater than whole, neither product can overflow
+   */
+  private static long multiplyDivide(long value, int part, int whole) {
+    return value / whole * part + value % whole * part / whole;
+  }
+}
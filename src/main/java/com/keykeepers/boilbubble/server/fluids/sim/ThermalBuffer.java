@@ -0,0 +1,115 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+/**
+ * A back buffer for a {@link ThermalKernel}, so that its steps can be computed on another thread while the live
+ * kernel keeps serving fills, drains and reads.
+ *
+ * {@link #capture()} copies the live state, {@link #compute(int)} steps the copy and may run on any thread, and
+ * {@link #publish()} merges the result back. Between capture and publish the live tank may have been filled or
+ * drained, so publishing does not overwrite it: the energy each layer gained or lost in the step is added to the live
+ * layer holding the same fluid, scaled down if some of that fluid has since been drained, and dropped if all of it
+ * has. Fluid filled in the meantime simply shares the energy its layer received. When nothing touched the live kernel
+ * in between, the result is exactly that of stepping it directly.
+ */
+public final class ThermalBuffer {
+  private final ThermalKernel live;
+  private final LayerStack stack;
+  private final ThermalKernel kernel;
+  private long[] startEnergies = new long[4];
+  private long startShellEnergy;
+  private long revision;
+  private boolean captured = false;
+
+  public ThermalBuffer(ThermalKernel live) {
+    this.live = live;
+    LayerStack liveStack = live.stack();
+    stack = new LayerStack(liveStack.properties(), liveStack.capacity());
+    kernel = new ThermalKernel(stack, (int) live.shellConductivity());
+  }
+
+  /**
+   * Copies the live kernel's state. Must be called on the thread that owns the live kernel. A dormant kernel is not
+   * captured, and the compute and publish that follow do nothing.
+   */
+  public void capture() {
+    live.syncProperties();
+    captured = !live.isDormant();
+    if (!captured)
+      return;
+    stack.copyFrom(live.stack());
+    kernel.copyFrom(live);
+    int layers = stack.layers();
+    if (layers > startEnergies.length)
+      startEnergies = new long[kernel.energies.length];
+    System.arraycopy(kernel.energies, 0, startEnergies, 0, layers);
+    startShellEnergy = kernel.shellEnergy;
+    revision = live.revision;
+  }
+
+  /**
+   * Steps the captured copy, fast-forwarding it over steps longer than
+   * {@link ThermalKernel#FAST_FORWARD_MIN_TICKS}. Touches nothing but this buffer, so it may run on any thread.
+   */
+  public void compute(int elapsedTicks) {
+    if (!captured)
+      return;
+    if (elapsedTicks > ThermalKernel.FAST_FORWARD_MIN_TICKS)
+      kernel.fastForward(elapsedTicks);
+    else
+      kernel.step(elapsedTicks);
+  }
+
+  /**
+   * @return The number of layers captured, or 0 if nothing was captured
+   */
+  public int layers() { return captured ? stack.layers() : 0; }
+
+  /**
+   * @return The thermal energy the captured copy has gained or lost since it was captured
+   */
+  public long energyDelta() {
+    if (!captured)
+      return 0;
+    long delta = kernel.totalEnergy() - startShellEnergy;
+    for (int layer = 0; layer < stack.layers(); layer++)
+      delta -= startEnergies[layer];
+    return delta;
+  }
+
+  /**
+   * Merges the computed step into the live kernel, which reports it through its usual change tracking. Must be called
+   * on the thread that owns the live kernel.
+   */
+  public void publish() {
+    if (!captured)
+      return;
+    captured = false;
+    if (!kernel.changed) {
+      // A quiet step only means equilibrium if nothing has disturbed the live kernel since.
+      if (kernel.dormant && live.revision == revision)
+        live.dormant = true;
+      return;
+    }
+
+    live.shellEnergy += kernel.shellEnergy - startShellEnergy;
+    LayerStack liveStack = live.stack();
+    long changedLayers = 0;
+    for (int j = 0; j < stack.layers(); j++) {
+      long delta = kernel.energies[j] - startEnergies[j];
+      if (delta == 0)
+        continue;
+      int layer = liveStack.indexOf(stack.fluid(j));
+      if (layer < 0)
+        continue;
+      int amount = liveStack.amount(layer);
+      int capturedAmount = stack.amount(j);
+      if (amount < capturedAmount)
+        delta = delta * amount / capturedAmount;
+      live.energies[layer] += delta;
+      live.updateTemperature(layer, amount);
+      changedLayers |= LayerStack.layerBit(layer);
+    }
+    live.changed = true;
+    live.changedLayers |= changedLayers;
+  }
+}
@@ -0,0 +1,698 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+import java.util.Arrays;
+
+/**
+ * The thermal simulation for one tank, independent of any game objects. It follows a {@link LayerStack} as its
+ * observer and keeps its state in primitive arrays that line up with the stack's layers, so a step walks them without
+ * map lookups or boxing. Temperatures are cached and only recalculated when a layer's energy or amount changes.
+ *
+ * See {@link com.keykeepers.boilbubble.server.fluids.ThermalTank} for the exchange model. A kernel only ever touches
+ * its own state and its stack, so kernels for different tanks may be stepped on different threads.
+ */
+public final class ThermalKernel implements LayerStack.Observer {
+  // Gaps up to this many ticks are stepped normally by fastForward; owners step longer ones with fastForward too.
+  public static final int FAST_FORWARD_MIN_TICKS = 20;
+  private static final int AMBIENT_TEMPERATURE = 300;
+
+  private final LayerStack stack;
+  private final FluidProperties properties;
+  private final int shellVolume;
+  private final float shellConductivity;
+  private int targetTemperature = AMBIENT_TEMPERATURE;
+  // State below is shared with ThermalBuffer, which copies it out and merges results back in.
+  long shellEnergy = 0;
+  long[] energies = new long[4];
+  private int[] temperatures = new int[4];
+  private int[] baseTemperatures = new int[4];
+  private float[] conductivities = new float[4];
+  private float[] specificHeats = new float[4];
+  // Energies past which each layer boils or freezes, given its amount; MAX_VALUE or MIN_VALUE if it never does.
+  private long[] boilEnergies = new long[4];
+  private long[] freezeEnergies = new long[4];
+  // The properties generation the cached base temperatures, conductivities and specific heats came from.
+  private int generation;
+  boolean dormant = false;
+  boolean changed = false;
+  long changedLayers = 0;
+  // Counts changes made from outside the simulation: a new target or a change to the layers.
+  long revision = 0;
+  // Layers found past their boiling or freezing point since the last changePhases.
+  long phaseLayers = 0;
+  // Scratch space for changePhases, grown with the stack, so that a layer boiling every tick allocates nothing.
+  private int[] phaseFluids = new int[4];
+
+  public ThermalKernel(LayerStack stack, int shellConductivity) {
+    if (shellConductivity < 1)
+      throw new IllegalArgumentException("Thermal conductivity must be positive.");
+    this.stack = stack;
+    this.properties = stack.properties();
+    this.shellConductivity = shellConductivity;
+
+    // Estimated volume of tank exterior for calculation purposes
+    // Assume a cube that can enclose the capacity.
+    int capacity = stack.capacity();
+    double length = Math.pow(capacity, 1.0 / 3.0) / 0.95;
+    shellVolume = (int) (Math.pow(length, 3) - capacity);
+
+    // Pick up any fluid the stack already holds, at its default temperature.
+    int layers = stack.layers();
+    if (layers > energies.length) {
+      energies = new long[layers];
+      temperatures = new int[layers];
+      baseTemperatures = new int[layers];
+      conductivities = new float[layers];
+      specificHeats = new float[layers];
+      boilEnergies = new long[layers];
+      freezeEnergies = new long[layers];
+    }
+    generation = properties.generation();
+    for (int layer = 0; layer < layers; layer++) {
+      int fluid = stack.fluid(layer);
+      baseTemperatures[layer] = properties.temperature(fluid);
+      temperatures[layer] = baseTemperatures[layer];
+      conductivities[layer] = properties.conductivity(fluid);
+      specificHeats[layer] = properties.specificHeat(fluid);
+      updateThresholds(layer);
+    }
+  }
+
+  public LayerStack stack() { return stack; }
+
+  public int targetTemperature() { return targetTemperature; }
+
+  /**
+   * @return true if the target changed, which wakes a dormant kernel
+   */
+  public boolean targetTemperature(int temperature) {
+    if (targetTemperature == temperature)
+      return false;
+    targetTemperature = temperature;
+    dormant = false;
+    revision++;
+    return true;
+  }
+
+  public int shellTemperature() { return (int) (AMBIENT_TEMPERATURE + shellEnergy / shellVolume); }
+
+  public long shellEnergy() { return shellEnergy; }
+
+  /**
+   * Sets the shell's energy to whatever puts it at the given temperature.
+   */
+  public void shellTemperature(int temperature) {
+    restore((long) (temperature - AMBIENT_TEMPERATURE) * shellVolume);
+  }
+
+  public long energy(int layer) {
+    if (layer < 0 || layer >= stack.layers())
+      throw new IndexOutOfBoundsException("Layer " + layer + " is not present");
+    return energies[layer];
+  }
+
+  /**
+   * Restores saved energies. Temperatures follow, and the kernel wakes to settle whatever they imply.
+   */
+  public void restore(long shellEnergy) {
+    this.shellEnergy = shellEnergy;
+    dormant = false;
+    revision++;
+  }
+
+  public void restore(int layer, long energy) {
+    if (layer < 0 || layer >= stack.layers())
+      throw new IndexOutOfBoundsException("Layer " + layer + " is not present");
+    energies[layer] = energy;
+    updateTemperature(layer, stack.amount(layer));
+    dormant = false;
+    revision++;
+  }
+
+  /**
+   * @return The thermal energy in the shell and every layer, relative to each material's default temperature
+   */
+  public long totalEnergy() {
+    long total = shellEnergy;
+    for (int layer = 0; layer < stack.layers(); layer++)
+      total += energies[layer];
+    return total;
+  }
+
+  public int temperature(int layer) {
+    if (layer < 0 || layer >= stack.layers())
+      throw new IndexOutOfBoundsException("Layer " + layer + " is not present");
+    return temperatures[layer];
+  }
+
+  /**
+   * A kernel goes dormant once a step passes in which no energy moves anywhere, and stays dormant until its target
+   * temperature changes or its layers change. Steps on a dormant kernel do nothing.
+   */
+  public boolean isDormant() { return dormant; }
+
+  /**
+   * @return true if some layer has passed its boiling or freezing point, so {@link #changePhases} has work to do
+   */
+  public boolean phaseChangePending() { return phaseLayers != 0; }
+
+  /**
+   * Carries out the changes of phase found since the last call. Layers are only checked against their points as
+   * their energy changes, by comparing with thresholds worked out when their amount last changed, so a tank full of
+   * hot fluid that is not changing phase costs nothing extra.
+   *
+   * A layer past its boiling point holds at that point, its energy beyond it counting toward the heat it takes to
+   * boil. As many whole mB as that pays for, at the fluid's boiling heat each, turn into the fluid it boils into,
+   * which arrives at the boiling point; the rest stays with the layer toward the next mB. Freezing and condensing run
+   * the other way, with the heat given out going to what is left of the layer, or to the product once nothing is.
+   *
+   * @param converter Turns fluid of one kind in the stack into another. The kernel is told of the change through
+   * the stack like any other, and then sets the energies of the layers involved.
+   * @return true if anything changed phase
+   */
+  public boolean changePhases(PhaseConverter converter) {
+    long pending = phaseLayers;
+    phaseLayers = 0;
+    // Converting adds and removes layers, so note the fluids first and find each again as its turn comes.
+    int layers = stack.layers();
+    if (layers > phaseFluids.length)
+      phaseFluids = new int[Math.max(layers, phaseFluids.length * 2)];
+    int[] fluids = phaseFluids;
+    int count = 0;
+    for (int layer = 0; layer < layers; layer++)
+      if ((pending & LayerStack.layerBit(layer)) != 0)
+        fluids[count++] = stack.fluid(layer);
+    boolean converted = false;
+    for (int k = 0; k < count; k++) {
+      int layer = stack.indexOf(fluids[k]);
+      if (layer >= 0 && changePhase(layer, converter))
+        converted = true;
+    }
+    return converted;
+  }
+
+  private boolean changePhase(int layer, PhaseConverter converter) {
+    int fluid = stack.fluid(layer);
+    long energy = energies[layer];
+    boolean boiling = energy > boilEnergies[layer];
+    if (!boiling && energy >= freezeEnergies[layer])
+      return false;
+    int into = boiling ? properties.boilsInto(fluid) : properties.freezesInto(fluid);
+    if (into < 0 || into == fluid)
+      return false;
+    int point = boiling ? properties.boilingPoint(fluid) : properties.freezingPoint(fluid);
+    float heat = boiling ? properties.boilingHeat(fluid) : properties.freezingHeat(fluid);
+    long excess = Math.abs(energy - (boiling ? boilEnergies[layer] : freezeEnergies[layer]));
+    int amount = stack.amount(layer);
+    int converting = heat > 0 ? (int) Math.min(amount, excess / heat) : amount;
+    if (converting < 1)
+      return false;
+    converting = converter.convert(fluid, into, converting);
+    if (converting < 1)
+      return false;
+
+    // Each mB leaves with the energy it held at the point, and takes in or gives out its latent heat on the way.
+    double carried = (point - (double) baseTemperatures[layer]) * specificHeats[layer] * converting;
+    double latent = (double) heat * converting;
+    long left = Math.round(energy - carried - (boiling ? latent : -latent));
+    long product = Math.round((point - (double) properties.temperature(into)) * properties.specificHeat(into)
+        * converting);
+    int from = stack.indexOf(fluid);
+    if (from >= 0) {
+      energies[from] = left;
+      updateTemperature(from, stack.amount(from));
+      changedLayers |= LayerStack.layerBit(from);
+    } else {
+      product += left;
+    }
+    int to = stack.indexOf(into);
+    energies[to] += product;
+    updateTemperature(to, stack.amount(to));
+    changedLayers |= LayerStack.layerBit(to);
+    changed = true;
+    dormant = false;
+    revision++;
+    return true;
+  }
+
+  /*
+   * Changes made by steps accumulate until cleared, so the owner can report them at a time of its choosing. A change
+   * with no layers marked means only the shell changed.
+   */
+
+  public boolean changed() { return changed; }
+
+  public long changedLayers() { return changedLayers; }
+
+  public void clearChanged() {
+    changed = false;
+    changedLayers = 0;
+  }
+
+  /**
+   * Runs thermal exchange covering the given number of ticks. Each exchange moves as much energy as that many ticks
+   * would, but for steps of more than one tick never more than it takes to bring both sides to the same temperature.
+   */
+  public void step(int elapsedTicks) {
+    syncProperties();
+    if (dormant)
+      return;
+    long[] energies = this.energies;
+    int[] temperatures = this.temperatures;
+    float[] conductivities = this.conductivities;
+    int[] amounts = stack.rawAmounts();
+    boolean shellChanged = false;
+    long layersChanged = 0;
+
+    // External to tank
+    int tankTemperature = shellTemperature();
+    if (tankTemperature != targetTemperature) {
+      int difference = targetTemperature - tankTemperature;
+      long energyChange = (long) (difference * shellConductivity * elapsedTicks);
+      long maxChange = (long) difference * shellVolume;
+      if (tankTemperature < targetTemperature)
+        shellEnergy += Math.min(Math.max(energyChange, 1), maxChange);
+      else
+        shellEnergy += Math.max(Math.min(energyChange, -1), maxChange);
+      tankTemperature = shellTemperature();
+      shellChanged = true;
+    }
+
+    int layers = stack.layers();
+    if (layers > 0) {
+      // Tank to first fluid
+      int fluidTemperature = temperatures[0];
+      if (fluidTemperature != tankTemperature) {
+        int difference = tankTemperature - fluidTemperature;
+        long actualChange = exchange(difference, (shellConductivity + conductivities[0]) / 2, elapsedTicks,
+            shellVolume, (double) amounts[0] * specificHeats[0]);
+        energies[0] += actualChange;
+        shellEnergy -= actualChange;
+        updateTemperature(0, amounts[0]);
+        layersChanged |= LayerStack.layerBit(0);
+      }
+
+      // Iterate up through fluids in the tank
+      for (int j = 1; j < layers; j++) {
+        int priorTemperature = temperatures[j - 1];
+        int nextTemperature = temperatures[j];
+        if (nextTemperature == priorTemperature)
+          continue;
+        int difference = priorTemperature - nextTemperature;
+        long actualChange = exchange(difference, (conductivities[j - 1] + conductivities[j]) / 2, elapsedTicks,
+            (double) amounts[j - 1] * specificHeats[j - 1], (double) amounts[j] * specificHeats[j]);
+        energies[j] += actualChange;
+        energies[j - 1] -= actualChange;
+        updateTemperature(j - 1, amounts[j - 1]);
+        updateTemperature(j, amounts[j]);
+        layersChanged |= LayerStack.layerBit(j - 1) | LayerStack.layerBit(j);
+      }
+    }
+
+    // Layers that passed a boiling or freezing point were noted as their energy changed; the owner carries out the
+    // change with changePhases once the step is published.
+
+    if (!shellChanged && layersChanged == 0) {
+      dormant = true;
+      return;
+    }
+    changed = true;
+    changedLayers |= layersChanged;
+  }
+
+  /**
+   * Advances the kernel by the given number of ticks at once, without carrying out changes of phase; see
+   * {@link #fastForward(long, PhaseConverter)}.
+   */
+  public void fastForward(long ticks) {
+    fastForward(ticks, null);
+  }
+
+  /**
+   * Advances the kernel by the given number of ticks at once, for catching up after a chunk was unloaded or the
+   * server fell behind. Short gaps are simply stepped. Longer ones use the fact that, apart from rounding, one tick
+   * of exchange is a linear map on each temperature's distance from the target: the tick is built as a matrix over
+   * the shell and layers, raised to the number of ticks by repeated squaring and applied once. The cost grows with
+   * the cube of the layer count and the logarithm of the gap, rather than with the gap itself.
+   *
+   * The result leaves out the rounding and the minimum one-unit transfers of a real tick, so temperatures may differ
+   * from stepping by a degree or so; any remainder is settled by the ticks that follow.
+   *
+   * Changing phase is not linear, so while any layer could reach its boiling or freezing point the gap is stepped a
+   * tick at a time instead, as it would have been live, and only the rest of it, once none can, is covered in closed
+   * form. Layers past their point hold there as they do on every step.
+   *
+   * @param converter Carries out changes of phase after each tick stepped, as {@link #changePhases} does; or null to
+   * leave them to the owner afterwards, as when fast-forwarding a copy off the thread that owns the stack
+   */
+  public void fastForward(long ticks, PhaseConverter converter) {
+    syncProperties();
+    while (ticks > FAST_FORWARD_MIN_TICKS && !dormant && phaseInReach()) {
+      for (int t = 0; t < FAST_FORWARD_MIN_TICKS; t++)
+        stepOne(converter);
+      ticks -= FAST_FORWARD_MIN_TICKS;
+    }
+    if (ticks <= FAST_FORWARD_MIN_TICKS) {
+      for (long t = 0; t < ticks; t++)
+        stepOne(converter);
+      return;
+    }
+    if (dormant)
+      return;
+    int layers = stack.layers();
+    double[][] elapsed = power(tickMatrix(layers), ticks);
+
+    // Temperatures as distances from the target, shell first and then layers from the bottom up.
+    double target = targetTemperature;
+    double[] offsets = new double[layers + 1];
+    offsets[0] = AMBIENT_TEMPERATURE + (double) shellEnergy / shellVolume - target;
+    for (int j = 0; j < layers; j++)
+      offsets[j + 1] = energies[j] / heatCapacity(j) + baseTemperatures[j] - target;
+
+    double shellOffset = 0;
+    for (int k = 0; k <= layers; k++)
+      shellOffset += elapsed[0][k] * offsets[k];
+    shellEnergy = Math.round((target + shellOffset - AMBIENT_TEMPERATURE) * shellVolume);
+    for (int j = 0; j < layers; j++) {
+      double offset = 0;
+      for (int k = 0; k <= layers; k++)
+        offset += elapsed[j + 1][k] * offsets[k];
+      energies[j] = Math.round((target + offset - baseTemperatures[j]) * heatCapacity(j));
+      updateTemperature(j, stack.amount(j));
+    }
+    changed = true;
+    changedLayers |= LayerStack.layersFrom(0);
+  }
+
+  private void stepOne(PhaseConverter converter) {
+    step(1);
+    if (converter != null && phaseLayers != 0)
+      changePhases(converter);
+  }
+
+  /**
+   * @return true if some layer could reach its boiling or freezing point from here. Exchange only moves temperatures
+   * toward each other and the target, so none leaves the range that they and the target span now.
+   */
+  private boolean phaseInReach() {
+    int layers = stack.layers();
+    int highest = Math.max(targetTemperature, shellTemperature());
+    int lowest = Math.min(targetTemperature, shellTemperature());
+    for (int j = 0; j < layers; j++) {
+      highest = Math.max(highest, temperatures[j]);
+      lowest = Math.min(lowest, temperatures[j]);
+    }
+    for (int j = 0; j < layers; j++) {
+      int fluid = stack.fluid(j);
+      if (boilEnergies[j] != Long.MAX_VALUE && properties.boilingPoint(fluid) <= highest)
+        return true;
+      if (freezeEnergies[j] != Long.MIN_VALUE && properties.freezingPoint(fluid) >= lowest)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Builds one tick of exchange as a linear map over temperature offsets from the target, in the same order that
+   * step applies it: target to shell, shell to the bottom layer, then each layer to the one above.
+   */
+  private double[][] tickMatrix(int layers) {
+    int size = layers + 1;
+    double[][] matrix = new double[size][size];
+    for (int k = 0; k < size; k++)
+      matrix[k][k] = 1;
+
+    // The shell is pulled toward the target, but never past it.
+    double shellRate = Math.min(shellConductivity / shellVolume, 1);
+    for (int k = 0; k < size; k++)
+      matrix[0][k] *= 1 - shellRate;
+
+    for (int j = 0; j < layers; j++) {
+      float conductivity = j == 0
+          ? (shellConductivity + conductivities[0]) / 2
+          : (conductivities[j - 1] + conductivities[j]) / 2;
+      double lowerRate = conductivity / (j == 0 ? (double) shellVolume : heatCapacity(j - 1));
+      double upperRate = conductivity / heatCapacity(j);
+      double[] lower = matrix[j];
+      double[] upper = matrix[j + 1];
+      for (int k = 0; k < size; k++) {
+        double difference = lower[k] - upper[k];
+        lower[k] -= difference * lowerRate;
+        upper[k] += difference * upperRate;
+      }
+    }
+    return matrix;
+  }
+
+  private static double[][] power(double[][] matrix, long exponent) {
+    int size = matrix.length;
+    double[][] result = new double[size][size];
+    for (int k = 0; k < size; k++)
+      result[k][k] = 1;
+    double[][] base = matrix;
+    while (exponent > 0) {
+      if ((exponent & 1) == 1)
+        result = multiply(result, base);
+      exponent >>= 1;
+      if (exponent > 0)
+        base = multiply(base, base);
+    }
+    return result;
+  }
+
+  private static double[][] multiply(double[][] a, double[][] b) {
+    int size = a.length;
+    double[][] product = new double[size][size];
+    for (int r = 0; r < size; r++)
+      for (int k = 0; k < size; k++) {
+        double factor = a[r][k];
+        if (factor == 0)
+          continue;
+        for (int c = 0; c < size; c++)
+          product[r][c] += factor * b[k][c];
+      }
+    return product;
+  }
+
+  /**
+   * @return The energy moved from the warmer side to the cooler side for a temperature difference, never less than
+   * one unit in the direction of the difference. Steps covering more than one tick are also held to the energy that
+   * would bring two bodies of the given heat capacities to the same temperature.
+   */
+  private static long exchange(int difference, float conductivity, int elapsedTicks, double capacity1,
+                               double capacity2) {
+    long energyChange = (long) (difference * conductivity * elapsedTicks);
+    if (elapsedTicks > 1) {
+      long equalizing = (long) (difference * capacity1 * capacity2 / (capacity1 + capacity2));
+      energyChange = difference > 0 ? Math.min(energyChange, equalizing) : Math.max(energyChange, equalizing);
+    }
+    if (difference > 0)
+      return Math.max(energyChange, 1);
+    else
+      return Math.min(energyChange, -1);
+  }
+
+  /**
+   * Makes this kernel a copy of another over the same fluids, for stepping the copy without touching the original.
+   * The stack behind this kernel must already hold a copy of the other's layers.
+   */
+  void copyFrom(ThermalKernel other) {
+    int layers = other.stack.layers();
+    if (layers > energies.length) {
+      energies = new long[other.energies.length];
+      temperatures = new int[other.energies.length];
+      baseTemperatures = new int[other.energies.length];
+      conductivities = new float[other.energies.length];
+      specificHeats = new float[other.energies.length];
+      boilEnergies = new long[other.energies.length];
+      freezeEnergies = new long[other.energies.length];
+    }
+    System.arraycopy(other.energies, 0, energies, 0, layers);
+    System.arraycopy(other.temperatures, 0, temperatures, 0, layers);
+    System.arraycopy(other.baseTemperatures, 0, baseTemperatures, 0, layers);
+    System.arraycopy(other.conductivities, 0, conductivities, 0, layers);
+    System.arraycopy(other.specificHeats, 0, specificHeats, 0, layers);
+    System.arraycopy(other.boilEnergies, 0, boilEnergies, 0, layers);
+    System.arraycopy(other.freezeEnergies, 0, freezeEnergies, 0, layers);
+    generation = other.generation;
+    phaseLayers = 0;
+    targetTemperature = other.targetTemperature;
+    shellEnergy = other.shellEnergy;
+    dormant = other.dormant;
+    changed = false;
+    changedLayers = 0;
+  }
+
+  float shellConductivity() { return shellConductivity; }
+
+  /**
+   * Picks up new fluid properties after a data reload. Each layer keeps its temperature and from then on warms and
+   * cools by the new values.
+   */
+  void syncProperties() {
+    int current = properties.generation();
+    if (current == generation)
+      return;
+    generation = current;
+    for (int layer = 0; layer < stack.layers(); layer++) {
+      int fluid = stack.fluid(layer);
+      baseTemperatures[layer] = properties.temperature(fluid);
+      conductivities[layer] = properties.conductivity(fluid);
+      specificHeats[layer] = properties.specificHeat(fluid);
+      energies[layer] = Math.round(((double) temperatures[layer] - baseTemperatures[layer]) * heatCapacity(layer));
+      updateThresholds(layer);
+      updateTemperature(layer, stack.amount(layer));
+    }
+    dormant = false;
+    revision++;
+  }
+
+  private double heatCapacity(int layer) { return (double) stack.amount(layer) * specificHeats[layer]; }
+
+  private void updateThresholds(int layer) {
+    int fluid = stack.fluid(layer);
+    double capacity = heatCapacity(layer);
+    boilEnergies[layer] = properties.boilsInto(fluid) < 0
+        ? Long.MAX_VALUE
+        : (long) Math.floor((properties.boilingPoint(fluid) - (double) baseTemperatures[layer]) * capacity);
+    freezeEnergies[layer] = properties.freezesInto(fluid) < 0
+        ? Long.MIN_VALUE
+        : (long) Math.ceil((properties.freezingPoint(fluid) - (double) baseTemperatures[layer]) * capacity);
+  }
+
+  /**
+   * Layers noted as past a point may have moved, so have changePhases look at every layer.
+   */
+  private void shiftedPhases() {
+    if (phaseLayers != 0)
+      phaseLayers = LayerStack.layersFrom(0);
+  }
+
+  void updateTemperature(int layer, int amount) {
+    if (amount < 1) {
+      temperatures[layer] = baseTemperatures[layer];
+      return;
+    }
+    long energy = energies[layer];
+    if (energy > boilEnergies[layer]) {
+      // Energy past the point goes into changing phase rather than warming, so the layer holds at the point.
+      temperatures[layer] = properties.boilingPoint(stack.fluid(layer));
+      phaseLayers |= LayerStack.layerBit(layer);
+    } else if (energy < freezeEnergies[layer]) {
+      temperatures[layer] = properties.freezingPoint(stack.fluid(layer));
+      phaseLayers |= LayerStack.layerBit(layer);
+    } else {
+      temperatures[layer] = (int) (energy / (amount * (double) specificHeats[layer]) + baseTemperatures[layer]);
+    }
+  }
+
+  @Override
+  public void inserted(int layer) {
+    int layers = stack.layers();
+    if (layers > energies.length) {
+      energies = Arrays.copyOf(energies, energies.length * 2);
+      temperatures = Arrays.copyOf(temperatures, temperatures.length * 2);
+      baseTemperatures = Arrays.copyOf(baseTemperatures, baseTemperatures.length * 2);
+      conductivities = Arrays.copyOf(conductivities, conductivities.length * 2);
+      specificHeats = Arrays.copyOf(specificHeats, specificHeats.length * 2);
+      boilEnergies = Arrays.copyOf(boilEnergies, boilEnergies.length * 2);
+      freezeEnergies = Arrays.copyOf(freezeEnergies, freezeEnergies.length * 2);
+    }
+    int shift = layers - 1 - layer;
+    System.arraycopy(energies, layer, energies, layer + 1, shift);
+    System.arraycopy(temperatures, layer, temperatures, layer + 1, shift);
+    System.arraycopy(baseTemperatures, layer, baseTemperatures, layer + 1, shift);
+    System.arraycopy(conductivities, layer, conductivities, layer + 1, shift);
+    System.arraycopy(specificHeats, layer, specificHeats, layer + 1, shift);
+    System.arraycopy(boilEnergies, layer, boilEnergies, layer + 1, shift);
+    System.arraycopy(freezeEnergies, layer, freezeEnergies, layer + 1, shift);
+    int fluid = stack.fluid(layer);
+    energies[layer] = 0;
+    baseTemperatures[layer] = properties.temperature(fluid);
+    temperatures[layer] = baseTemperatures[layer];
+    conductivities[layer] = properties.conductivity(fluid);
+    specificHeats[layer] = properties.specificHeat(fluid);
+    updateThresholds(layer);
+    shiftedPhases();
+    dormant = false;
+    revision++;
+  }
+
+  @Override
+  public void removed(int layer) {
+    int shift = stack.layers() - layer;
+    System.arraycopy(energies, layer + 1, energies, layer, shift);
+    System.arraycopy(temperatures, layer + 1, temperatures, layer, shift);
+    System.arraycopy(baseTemperatures, layer + 1, baseTemperatures, layer, shift);
+    System.arraycopy(conductivities, layer + 1, conductivities, layer, shift);
+    System.arraycopy(specificHeats, layer + 1, specificHeats, layer, shift);
+    System.arraycopy(boilEnergies, layer + 1, boilEnergies, layer, shift);
+    System.arraycopy(freezeEnergies, layer + 1, freezeEnergies, layer, shift);
+    shiftedPhases();
+    dormant = false;
+    revision++;
+  }
+
+  @Override
+  public void resized(int layer, int oldAmount, int newAmount) {
+    // Drained fluid carries its share of the layer's energy away with it. Filled fluid arrives at its default
+    // temperature, which carries no energy of its own and simply dilutes the layer.
+    if (newAmount < oldAmount)
+      energies[layer] = energies[layer] * newAmount / oldAmount;
+    updateThresholds(layer);
+    updateTemperature(layer, newAmount);
+    dormant = false;
+    revision++;
+  }
+
+  @Override
+  public void moved(int from, int to) {
+    rotate(energies, from, to);
+    rotate(temperatures, from, to);
+    rotate(baseTemperatures, from, to);
+    rotate(conductivities, from, to);
+    rotate(specificHeats, from, to);
+    rotate(boilEnergies, from, to);
+    rotate(freezeEnergies, from, to);
+    shiftedPhases();
+    dormant = false;
+    revision++;
+  }
+
+  private static void rotate(long[] values, int from, int to) {
+    long value = values[from];
+    if (from < to)
+      System.arraycopy(values, from + 1, values, from, to - from);
+    else
+      System.arraycopy(values, to, values, to + 1, from - to);
+    values[to] = value;
+  }
+
+  private static void rotate(int[] values, int from, int to) {
+    int value = values[from];
+    if (from < to)
+      System.arraycopy(values, from + 1, values, from, to - from);
+    else
+      System.arraycopy(values, to, values, to + 1, from - to);
+    values[to] = value;
+  }
+
+  private static void rotate(float[] values, int from, int to) {
+    float value = values[from];
+    if (from < to)
+      System.arraycopy(values, from + 1, values, from, to - from);
+    else
+      System.arraycopy(values, to, values, to + 1, from - to);
+    values[to] = value;
+  }
+
+  /**
+   * Turns fluid in the kernel's stack from one kind into another, through whatever owns the stack so that the change
+   * is reported like any other fill or drain.
+   */
+  public interface PhaseConverter {
+    /**
+     * @return The amount converted
+     */
+    int convert(int fromFluid, int intoFluid, int amount);
+  }
+}
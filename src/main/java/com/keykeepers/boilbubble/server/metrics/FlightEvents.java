@@ -0,0 +1,78 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import net.minecraft.util.math.BlockPos;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Java Flight Recorder events for the tank hot paths, so that an ordinary {@code jcmd <pid> JFR.start} recording shows
+ * which tanks are expensive alongside GC and allocation data. Events appear under "Boil and Bubble" and carry the
+ * tank's position, its layer count and the change in its thermal energy.
+ *
+ * Each begin method returns a token to hand to the matching end method, or null when there is nothing to record.
+ * Nothing here refers to JFR directly: when the runtime has no JFR, or no recording is running, a begin is a single
+ * read of a volatile flag and an end with a null token does nothing.
+ */
+public final class FlightEvents {
+  private static final Logger logger = LogManager.getLogger();
+  private static final FlightProbe probe = load();
+
+  private FlightEvents() {}
+
+  private static FlightProbe load() {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder", false, FlightEvents.class.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+    try {
+      return FlightProbe.install();
+    } catch (RuntimeException | LinkageError e) {
+      logger.warn("Flight Recorder is present but could not be hooked; tank events will not be recorded", e);
+      return null;
+    }
+  }
+
+  public static boolean recording() { return probe != null && FlightProbe.recording; }
+
+  /**
+   * Starts timing a thermal step of one tank holder, covering all of its tanks.
+   */
+  @Nullable
+  public static Object beginThermalStep() { return recording() ? probe.beginThermalStep() : null; }
+
+  public static void endThermalStep(@Nullable Object event, @Nullable BlockPos pos, int layers, long energyDelta,
+                                    int ticks, boolean offThread) {
+    if (event != null)
+      probe.endThermalStep(event, pos, layers, energyDelta, ticks, offThread);
+  }
+
+  /**
+   * Starts timing a batched fill or drain.
+   */
+  @Nullable
+  public static Object beginTransfer() { return recording() ? probe.beginTransfer() : null; }
+
+  public static void endTransfer(@Nullable Object event, @Nullable BlockPos pos, int layers, long energyDelta,
+                                 boolean fill, boolean execute, int resources, int amount) {
+    if (event != null)
+      probe.endTransfer(event, pos, layers, energyDelta, fill, execute, resources, amount);
+  }
+
+  /**
+   * Starts timing the saving or loading of a tank holder.
+   */
+  @Nullable
+  public static Object beginSerialization() { return recording() ? probe.beginSerialization() : null; }
+
+  /**
+   * @param energy The thermal energy saved or loaded, rather than a change in it
+   */
+  public static void endSerialization(@Nullable Object event, @Nullable BlockPos pos, int layers, long energy,
+                                      boolean write) {
+    if (event != null)
+      probe.endSerialization(event, pos, layers, energy, write);
+  }
+}
@@ -0,0 +1,95 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * The part of {@link FlightEvents} that touches JFR, only loaded once the runtime is known to have it. Keeps the
+ * recording flag in step with the recorder so that events are only built while a recording runs.
+ */
+final class FlightProbe {
+  // Kept here rather than in FlightEvents so the recorder's threads never wait on that class being initialized.
+  static volatile boolean recording = false;
+
+  private FlightProbe() {}
+
+  static FlightProbe install() {
+    if (!FlightRecorder.isAvailable())
+      return null;
+    FlightRecorder.register(ThermalStepEvent.class);
+    FlightRecorder.register(TankTransferEvent.class);
+    FlightRecorder.register(TankSerializationEvent.class);
+    FlightProbe probe = new FlightProbe();
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      @Override
+      public void recorderInitialized(FlightRecorder recorder) { update(recorder); }
+
+      @Override
+      public void recordingStateChanged(Recording changed) { update(FlightRecorder.getFlightRecorder()); }
+    });
+    return probe;
+  }
+
+  private static void update(FlightRecorder recorder) {
+    boolean running = false;
+    for (Recording each : recorder.getRecordings())
+      if (each.getState() == RecordingState.RUNNING) {
+        running = true;
+        break;
+      }
+    FlightProbe.recording = running;
+  }
+
+  Object beginThermalStep() { return begin(new ThermalStepEvent()); }
+
+  void endThermalStep(Object token, BlockPos pos, int layers, long energyDelta, int ticks, boolean offThread) {
+    ThermalStepEvent event = (ThermalStepEvent) token;
+    if (!end(event))
+      return;
+    event.tank(pos, layers, energyDelta);
+    event.ticks = ticks;
+    event.offThread = offThread;
+    event.commit();
+  }
+
+  Object beginTransfer() { return begin(new TankTransferEvent()); }
+
+  void endTransfer(Object token, BlockPos pos, int layers, long energyDelta, boolean fill, boolean execute,
+                   int resources, int amount) {
+    TankTransferEvent event = (TankTransferEvent) token;
+    if (!end(event))
+      return;
+    event.tank(pos, layers, energyDelta);
+    event.fill = fill;
+    event.execute = execute;
+    event.resources = resources;
+    event.amount = amount;
+    event.commit();
+  }
+
+  Object beginSerialization() { return begin(new TankSerializationEvent()); }
+
+  void endSerialization(Object token, BlockPos pos, int layers, long energy, boolean write) {
+    TankSerializationEvent event = (TankSerializationEvent) token;
+    if (!end(event))
+      return;
+    event.tank(pos, layers, energy);
+    event.write = write;
+    event.commit();
+  }
+
+  private static TankEvent begin(TankEvent event) {
+    if (!event.isEnabled())
+      return null;
+    event.begin();
+    return event;
+  }
+
+  private static boolean end(TankEvent event) {
+    event.end();
+    return event.shouldCommit();
+  }
+}
@@ -0,0 +1,71 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with one bucket per power of two, so recording is a couple of adder increments whatever the
+ * value. Percentiles are reported as the upper bound of the bucket they fall in, which is within a factor of two.
+ */
+public final class Histogram {
+  private static final int BUCKETS = 64;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  Histogram() {
+    for (int i = 0; i < BUCKETS; i++)
+      buckets[i] = new LongAdder();
+  }
+
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  public long count() {
+    long count = 0;
+    for (LongAdder bucket : buckets)
+      count += bucket.sum();
+    return count;
+  }
+
+  public long mean() {
+    long count = count();
+    return count == 0 ? 0 : sum.sum() / count;
+  }
+
+  public long max() { return max.get(); }
+
+  /**
+   * @param fraction The fraction of recorded values, between 0 and 1, that should fall at or below the result
+   */
+  public long percentile(double fraction) {
+    long[] counts = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      count += counts[i] = buckets[i].sum();
+    if (count == 0)
+      return 0;
+    long rank = (long) Math.ceil(fraction * count);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS - 1; i++) {
+      seen += counts[i];
+      // Bucket i holds values below 2^i.
+      if (seen >= Math.max(rank, 1))
+        return Math.min((1L << i) - 1, max.get());
+    }
+    return max.get();
+  }
+
+  void reset() {
+    for (LongAdder bucket : buckets)
+      bucket.reset();
+    sum.reset();
+    max.reset();
+  }
+}
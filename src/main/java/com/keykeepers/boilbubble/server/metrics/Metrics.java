@@ -0,0 +1,165 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters, gauges and latency histograms describing what the mod's server-side systems are doing, for telling
+ * whether tanks are to blame when the server slows down. They are shown by {@code /boilbubble stats} and, if enabled,
+ * published over JMX.
+ *
+ * Nothing is recorded unless metrics are enabled in the server config. Recording sites check {@link #enabled()} or
+ * use {@link #start()}, so while disabled each one costs a single read of a flag.
+ */
+public final class Metrics {
+  private static final Logger logger = LogManager.getLogger();
+  private static final String OBJECT_NAME = "com.keykeepers.boilbubble:type=Metrics";
+  private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private static volatile boolean enabled = false;
+  private static ObjectName registeredBean;
+
+  public static final LongAdder fillExecutes = counter("tank.fill.execute");
+  public static final LongAdder fillSimulations = counter("tank.fill.simulate");
+  public static final LongAdder drainExecutes = counter("tank.drain.execute");
+  public static final LongAdder drainSimulations = counter("tank.drain.simulate");
+  public static final Histogram fillNanos = histogram("tank.fill.nanos");
+  public static final Histogram drainNanos = histogram("tank.drain.nanos");
+  public static final LongAdder phaseChanges = counter("thermal.phase.changes");
+  public static final LongAdder phaseChangedMb = counter("thermal.phase.mb");
+
+  private Metrics() {}
+
+  public static boolean enabled() { return enabled; }
+
+  /**
+   * @return The current time for timing an operation, or 0 if metrics are disabled
+   */
+  public static long start() { return enabled ? System.nanoTime() : 0; }
+
+  /**
+   * Records one call to fill a tank holder through its public API, single or batched, that was started with
+   * {@link #start()}. Fluid moved inside the mod, as when pools are rebuilt, is not counted.
+   */
+  public static void tankFill(boolean execute, long start) {
+    if (start == 0)
+      return;
+    fillNanos.record(System.nanoTime() - start);
+    (execute ? fillExecutes : fillSimulations).increment();
+  }
+
+  /**
+   * Records one call to drain a tank holder through its public API, single or batched, that was started with
+   * {@link #start()}.
+   */
+  public static void tankDrain(boolean execute, long start) {
+    if (start == 0)
+      return;
+    drainNanos.record(System.nanoTime() - start);
+    (execute ? drainExecutes : drainSimulations).increment();
+  }
+
+  /**
+   * Records one layer changing phase, with the amount that turned into another fluid.
+   */
+  public static void phaseChange(int amount) {
+    if (!enabled)
+      return;
+    phaseChanges.increment();
+    phaseChangedMb.add(amount);
+  }
+
+  public static LongAdder counter(String name) { return counters.computeIfAbsent(name, n -> new LongAdder()); }
+
+  public static AtomicLong gauge(String name) { return gauges.computeIfAbsent(name, n -> new AtomicLong()); }
+
+  public static Histogram histogram(String name) { return histograms.computeIfAbsent(name, n -> new Histogram()); }
+
+  /**
+   * Drops every metric whose name starts with the prefix, for metrics that belong to something that has gone away,
+   * like an unloaded world.
+   */
+  public static void remove(String prefix) {
+    counters.keySet().removeIf(name -> name.startsWith(prefix));
+    gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    histograms.keySet().removeIf(name -> name.startsWith(prefix));
+  }
+
+  /**
+   * Zeroes the counters and histograms. Gauges describe current state and are left alone.
+   */
+  public static void reset() {
+    counters.values().forEach(LongAdder::reset);
+    histograms.values().forEach(Histogram::reset);
+  }
+
+  /**
+   * @return Every metric as a flat, sorted set of values. Histograms contribute their count, mean, 50th and 99th
+   * percentile and maximum.
+   */
+  public static SortedMap<String, Long> snapshot() {
+    TreeMap<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+      values.put(counter.getKey(), counter.getValue().sum());
+    for (Map.Entry<String, AtomicLong> gauge : gauges.entrySet())
+      values.put(gauge.getKey(), gauge.getValue().get());
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      String name = entry.getKey();
+      Histogram histogram = entry.getValue();
+      values.put(name + ".count", histogram.count());
+      values.put(name + ".mean", histogram.mean());
+      values.put(name + ".p50", histogram.percentile(0.5));
+      values.put(name + ".p99", histogram.percentile(0.99));
+      values.put(name + ".max", histogram.max());
+    }
+    return values;
+  }
+
+  /**
+   * Applies the metrics settings from the server config.
+   *
+   * @param enabled Whether to record anything at all
+   * @param jmx Whether to publish the metrics as an MXBean on the platform MBean server
+   */
+  public static synchronized void configure(boolean enabled, boolean jmx) {
+    Metrics.enabled = enabled;
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      if (jmx && registeredBean == null) {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name))
+          server.registerMBean(new MetricsBean(), name);
+        registeredBean = name;
+      } else if (!jmx && registeredBean != null) {
+        if (server.isRegistered(registeredBean))
+          server.unregisterMBean(registeredBean);
+        registeredBean = null;
+      }
+    } catch (JMException e) {
+      logger.warn("Could not {} the metrics MXBean", jmx ? "register" : "unregister", e);
+    }
+  }
+
+  private static class MetricsBean implements MetricsMXBean {
+    @Override
+    public boolean isEnabled() { return enabled; }
+
+    @Override
+    public Map<String, Long> getValues() { return snapshot(); }
+
+    @Override
+    public void reset() { Metrics.reset(); }
+  }
+}
@@ -0,0 +1,14 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link Metrics}.
+ */
+public interface MetricsMXBean {
+  boolean isEnabled();
+
+  Map<String, Long> getValues();
+
+  void reset();
+}
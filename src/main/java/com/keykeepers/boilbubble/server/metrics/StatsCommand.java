@@ -0,0 +1,72 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import com.keykeepers.boilbubble.BoilBubble;
+import com.keykeepers.boilbubble.server.fluids.ThermalScheduler;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.command.CommandSource;
+import net.minecraft.command.Commands;
+import net.minecraft.util.text.StringTextComponent;
+import net.minecraft.world.server.ServerWorld;
+import net.minecraftforge.event.RegisterCommandsEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * {@code /boilbubble stats} reports the thermal scheduler's state in each world and, when metrics are enabled, the
+ * recorded counters and timings. {@code /boilbubble stats reset} zeroes the counters and timings.
+ */
+@Mod.EventBusSubscriber(modid = BoilBubble.MODID)
+public final class StatsCommand {
+  private StatsCommand() {}
+
+  @SubscribeEvent
+  public static void onRegisterCommands(RegisterCommandsEvent event) {
+    event.getDispatcher().register(Commands.literal(BoilBubble.MODID)
+        .then(Commands.literal("stats")
+            .requires(source -> source.hasPermissionLevel(2))
+            .executes(StatsCommand::stats)
+            .then(Commands.literal("reset")
+                .executes(StatsCommand::reset))));
+  }
+
+  private static int stats(CommandContext<CommandSource> context) {
+    CommandSource source = context.getSource();
+    for (ServerWorld world : source.getServer().getWorlds()) {
+      int registered = ThermalScheduler.registered(world);
+      if (registered == 0)
+        continue;
+      int active = ThermalScheduler.active(world);
+      send(source, String.format("%s: %d thermal tanks (%d active, %d dormant), %d layers, lag %d ticks, backlog %d",
+          world.getDimensionKey().getLocation(), registered, active, registered - active,
+          ThermalScheduler.layers(world), ThermalScheduler.lag(world), ThermalScheduler.backlog(world)));
+    }
+
+    if (!Metrics.enabled()) {
+      send(source, "Metrics are disabled; turn on metrics.enabled in the server config to record timings.");
+      return 1;
+    }
+    long fills = Metrics.fillExecutes.sum() + Metrics.fillSimulations.sum();
+    long drains = Metrics.drainExecutes.sum() + Metrics.drainSimulations.sum();
+    send(source, String.format("Fills: %d (%d%% simulated), drains: %d (%d%% simulated)",
+        fills, percent(Metrics.fillSimulations.sum(), fills), drains, percent(Metrics.drainSimulations.sum(), drains)));
+    SortedMap<String, Long> values = Metrics.snapshot();
+    for (Map.Entry<String, Long> entry : values.entrySet())
+      send(source, entry.getKey() + " = " + entry.getValue());
+    return 1;
+  }
+
+  private static int reset(CommandContext<CommandSource> context) {
+    Metrics.reset();
+    send(context.getSource(), "Metrics reset.");
+    return 1;
+  }
+
+  private static long percent(long part, long whole) { return whole == 0 ? 0 : part * 100 / whole; }
+
+  private static void send(CommandSource source, String message) {
+    source.sendFeedback(new StringTextComponent(message), false);
+  }
+}
@@ -0,0 +1,43 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * Fields shared by the tank flight events.
+ */
+@Category("Boil and Bubble")
+@StackTrace(false)
+abstract class TankEvent extends Event {
+  @Label("Positioned")
+  boolean positioned;
+
+  @Label("X")
+  int x;
+
+  @Label("Y")
+  int y;
+
+  @Label("Z")
+  int z;
+
+  @Label("Layers")
+  int layers;
+
+  @Label("Energy Delta")
+  long energyDelta;
+
+  final void tank(BlockPos pos, int layers, long energyDelta) {
+    if (pos != null) {
+      positioned = true;
+      x = pos.getX();
+      y = pos.getY();
+      z = pos.getZ();
+    }
+    this.layers = layers;
+    this.energyDelta = energyDelta;
+  }
+}
@@ -0,0 +1,16 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Energy delta holds the thermal energy saved or loaded.
+ */
+@Name("boilbubble.TankSerialization")
+@Label("Tank Serialization")
+@Description("Saving or loading the contents of a tank holder")
+final class TankSerializationEvent extends TankEvent {
+  @Label("Write")
+  boolean write;
+}
@@ -0,0 +1,22 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("boilbubble.TankTransfer")
+@Label("Tank Transfer")
+@Description("A batched fill or drain of several fluids")
+final class TankTransferEvent extends TankEvent {
+  @Label("Fill")
+  boolean fill;
+
+  @Label("Execute")
+  boolean execute;
+
+  @Label("Resources")
+  int resources;
+
+  @Label("Amount")
+  int amount;
+}
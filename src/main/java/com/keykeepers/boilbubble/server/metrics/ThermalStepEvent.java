@@ -0,0 +1,16 @@
+package com.keykeepers.boilbubble.server.metrics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("boilbubble.ThermalStep")
+@Label("Thermal Step")
+@Description("Heat exchange for every tank in one thermal tank holder")
+final class ThermalStepEvent extends TankEvent {
+  @Label("Ticks")
+  int ticks;
+
+  @Label("Off Thread")
+  boolean offThread;
+}
@@ -0,0 +1,462 @@
+package com.keykeepers.boilbubble.server.sync;
+
+import com.keykeepers.boilbubble.BoilBubble;
+import com.keykeepers.boilbubble.common.network.Network;
+import com.keykeepers.boilbubble.common.network.TankSyncMessage;
+import com.keykeepers.boilbubble.server.fluids.FractionalTank;
+import com.keykeepers.boilbubble.server.fluids.TankListener;
+import com.keykeepers.boilbubble.server.fluids.ThermalTank;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.IWorld;
+import net.minecraft.world.World;
+import net.minecraft.world.server.ServerWorld;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.entity.player.PlayerEvent;
+import net.minecraftforge.event.world.ChunkWatchEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.network.PacketDistributor;
+import net.minecraftforge.registries.ForgeRegistries;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.UUID;
+
+/**
+ * Keeps clients' copies of tank contents and temperatures up to date. Owners track each tank holder by position when
+ * it is loaded and untrack it when it is removed; everything else follows from chunk watching.
+ *
+ * For every watching player the last state sent for each holder is remembered, and only what differs from it is
+ * sent: layer lists for tanks whose fluids changed, and amounts and temperature corrections for the rest. All updates
+ * for a chunk go out in one packet per tick, and a player that starts watching a chunk gets a full snapshot of it.
+ *
+ * Temperatures are sent with a rate of change and the tank's target, and the client carries them forward on its own.
+ * Since the server knows what each client is extrapolating, it only sends a correction, with a fresh rate taken over
+ * the time since the last one, once a client is off by the configured tolerance. A tank warming steadily costs one
+ * packet every so often instead of one per tick.
+ *
+ * Each player may be sent at most the configured number of bytes per tick. Chunks left over keep their place in line
+ * and are sent in later ticks, bringing the player straight to the current state, so bandwidth stays bounded however
+ * many tanks are changing.
+ */
+@Mod.EventBusSubscriber(modid = BoilBubble.MODID)
+public final class TankSync {
+  private static final HashMap<IWorld, TankSync> worlds = new HashMap<>();
+  private static volatile int temperatureTolerance = 1;
+  private static volatile int byteBudget = 0;
+
+  private final ServerWorld world;
+  private final HashMap<BlockPos, Tracked> tracked = new HashMap<>();
+  private final HashMap<Long, ArrayList<Tracked>> byChunk = new HashMap<>();
+  private final LinkedHashSet<Long> changedChunks = new LinkedHashSet<>();
+  // Holders some player is extrapolating; these are checked every tick even when they have not changed.
+  private final HashSet<Tracked> moving = new HashSet<>();
+  private final HashMap<UUID, Viewer> viewers = new HashMap<>();
+
+  private TankSync(ServerWorld world) {
+    this.world = world;
+  }
+
+  public static void track(World world, BlockPos pos, FractionalTank tank) {
+    if (!(world instanceof ServerWorld))
+      return;
+    TankSync sync = worlds.computeIfAbsent(world, w -> new TankSync((ServerWorld) world));
+    sync.untrack(pos);
+    Tracked entry = sync.new Tracked(pos.toImmutable(), tank);
+    sync.tracked.put(entry.pos, entry);
+    sync.byChunk.computeIfAbsent(entry.chunk, c -> new ArrayList<>()).add(entry);
+    tank.addListener(entry);
+    entry.tankChanged(tank, 0, 0);
+  }
+
+  public static void untrack(World world, BlockPos pos) {
+    TankSync sync = worlds.get(world);
+    if (sync != null)
+      sync.untrack(pos);
+  }
+
+  /**
+   * @param tolerance How far, in kelvin, a player's extrapolated temperature may drift before it is corrected
+   * @param bytesPerTick The most each player may be sent per tick, or 0 for no limit
+   */
+  public static void configure(int tolerance, int bytesPerTick) {
+    temperatureTolerance = Math.max(1, tolerance);
+    byteBudget = Math.max(0, bytesPerTick);
+  }
+
+  @SubscribeEvent
+  public static void onWorldTick(TickEvent.WorldTickEvent event) {
+    if (event.phase != TickEvent.Phase.END || event.world.isRemote)
+      return;
+    TankSync sync = worlds.get(event.world);
+    if (sync != null)
+      sync.tick();
+  }
+
+  @SubscribeEvent
+  public static void onWatch(ChunkWatchEvent.Watch event) {
+    TankSync sync = worlds.get(event.getWorld());
+    if (sync != null)
+      sync.watch(event.getPlayer().getUniqueID(), event.getPos().asLong());
+  }
+
+  @SubscribeEvent
+  public static void onUnWatch(ChunkWatchEvent.UnWatch event) {
+    TankSync sync = worlds.get(event.getWorld());
+    if (sync != null)
+      sync.unwatch(event.getPlayer().getUniqueID(), event.getPos().asLong());
+  }
+
+  @SubscribeEvent
+  public static void onLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+    UUID id = event.getPlayer().getUniqueID();
+    for (TankSync sync : worlds.values())
+      sync.viewers.remove(id);
+  }
+
+  @SubscribeEvent
+  public static void onWorldUnload(WorldEvent.Unload event) {
+    TankSync sync = worlds.remove(event.getWorld());
+    if (sync != null)
+      for (Tracked entry : sync.tracked.values())
+        entry.tank.removeListener(entry);
+  }
+
+  private void untrack(BlockPos pos) {
+    Tracked entry = tracked.remove(pos);
+    if (entry == null)
+      return;
+    entry.tank.removeListener(entry);
+    moving.remove(entry);
+    ArrayList<Tracked> inChunk = byChunk.get(entry.chunk);
+    inChunk.remove(entry);
+    if (inChunk.isEmpty())
+      byChunk.remove(entry.chunk);
+    for (Viewer viewer : viewers.values())
+      if (viewer.sent.remove(entry) != null) {
+        viewer.removals.computeIfAbsent(entry.chunk, c -> new ArrayList<>()).add(entry.pos);
+        viewer.pending.add(entry.chunk);
+      }
+  }
+
+  private void watch(UUID player, long chunk) {
+    Viewer viewer = viewers.computeIfAbsent(player, Viewer::new);
+    viewer.watched.add(chunk);
+    viewer.forget(chunk);
+    ArrayList<Tracked> inChunk = byChunk.get(chunk);
+    if (inChunk == null)
+      return;
+    for (Tracked entry : inChunk)
+      viewer.sent.remove(entry);
+    viewer.resets.add(chunk);
+    viewer.pending.add(chunk);
+  }
+
+  private void unwatch(UUID player, long chunk) {
+    Viewer viewer = viewers.get(player);
+    if (viewer == null)
+      return;
+    viewer.watched.remove(chunk);
+    viewer.forget(chunk);
+    ArrayList<Tracked> inChunk = byChunk.get(chunk);
+    if (inChunk != null)
+      for (Tracked entry : inChunk)
+        viewer.sent.remove(entry);
+    if (viewer.watched.isEmpty())
+      viewers.remove(player);
+  }
+
+  private void tick() {
+    for (Tracked entry : moving)
+      changedChunks.add(entry.chunk);
+    moving.clear();
+    for (Long chunk : changedChunks) {
+      for (Tracked entry : byChunk.getOrDefault(chunk, new ArrayList<>(0)))
+        entry.dirty = false;
+      for (Viewer viewer : viewers.values())
+        if (viewer.watched.contains(chunk))
+          viewer.pending.add(chunk);
+    }
+    changedChunks.clear();
+
+    int budget = byteBudget;
+    for (Viewer viewer : viewers.values()) {
+      if (viewer.pending.isEmpty())
+        continue;
+      ServerPlayerEntity player = world.getServer().getPlayerList().getPlayerByUUID(viewer.id);
+      if (player == null)
+        continue;
+      int spent = 0;
+      for (Iterator<Long> it = viewer.pending.iterator(); it.hasNext() && (budget == 0 || spent < budget); ) {
+        long chunk = it.next();
+        it.remove();
+        spent += send(viewer, player, chunk, world.getGameTime());
+      }
+    }
+  }
+
+  /**
+   * @return The number of payload bytes sent
+   */
+  private int send(Viewer viewer, ServerPlayerEntity player, long chunk, long now) {
+    ByteBuf bytes = Unpooled.buffer();
+    PacketBuffer buf = new PacketBuffer(bytes);
+    boolean reset = viewer.resets.remove(chunk);
+    ArrayList<BlockPos> removals = viewer.removals.remove(chunk);
+    if (removals != null)
+      for (BlockPos pos : removals) {
+        buf.writeLong(pos.toLong());
+        buf.writeByte(TankSyncMessage.REMOVED);
+      }
+    ArrayList<Tracked> inChunk = byChunk.get(chunk);
+    if (inChunk != null)
+      for (Tracked entry : inChunk)
+        write(buf, entry, viewer, now);
+    if (!bytes.isReadable() && !reset)
+      return 0;
+    Network.channel.send(PacketDistributor.PLAYER.with(() -> player), new TankSyncMessage(chunk, reset, bytes));
+    return bytes.readableBytes();
+  }
+
+  private void write(PacketBuffer buf, Tracked entry, Viewer viewer, long now) {
+    FractionalTank tank = entry.tank;
+    Sent sent = viewer.sent.get(entry);
+    if (sent == null || sent.fluids.length != tank.getTanks()) {
+      sent = new Sent(tank.getTanks());
+      viewer.sent.put(entry, sent);
+      buf.writeLong(entry.pos.toLong());
+      buf.writeByte(TankSyncMessage.FULL);
+      buf.writeVarInt(tank.getTanks());
+      for (int i = 0; i < tank.getTanks(); i++)
+        writeLayers(buf, tank, i, sent, now);
+      watchMoving(entry, sent, now);
+      return;
+    }
+
+    int tolerance = temperatureTolerance;
+    int changed = 0;
+    for (int i = 0; i < tank.getTanks(); i++)
+      if (!sameFluids(tank, i, sent) || targetOf(tank, i) != sent.targets[i]
+          || updates(tank, i, sent, now, tolerance) > 0)
+        changed++;
+    if (changed == 0) {
+      watchMoving(entry, sent, now);
+      return;
+    }
+    buf.writeLong(entry.pos.toLong());
+    buf.writeByte(TankSyncMessage.DELTA);
+    buf.writeVarInt(changed);
+    for (int i = 0; i < tank.getTanks(); i++) {
+      if (!sameFluids(tank, i, sent)) {
+        buf.writeVarInt(i);
+        buf.writeByte(TankSyncMessage.LAYERS);
+        writeLayers(buf, tank, i, sent, now);
+        continue;
+      }
+      int target = targetOf(tank, i);
+      int updates = updates(tank, i, sent, now, tolerance);
+      if (target == sent.targets[i] && updates == 0)
+        continue;
+      buf.writeVarInt(i);
+      buf.writeByte(TankSyncMessage.UPDATES);
+      TankSyncMessage.writeZigZag(buf, target - sent.targets[i]);
+      // The client applies the new target before extrapolating, so the layers not corrected here were already
+      // judged against it.
+      sent.targets[i] = target;
+      buf.writeVarInt(updates);
+      int[] amounts = sent.amounts[i];
+      int[] temperatures = sent.temperatures[i];
+      int[] rates = sent.rates[i];
+      long[] times = sent.times[i];
+      for (int layer = 0; layer < amounts.length; layer++) {
+        int amount = tank.layerAmount(i, layer);
+        int temperature = tank.layerTemperature(i, layer);
+        long elapsed = now - times[layer];
+        int drift = temperature - TankSyncMessage.extrapolate(temperatures[layer], rates[layer], target, elapsed);
+        boolean corrected = Math.abs(drift) >= tolerance;
+        if (amount == amounts[layer] && !corrected)
+          continue;
+        // A correction takes the average rate since the last one. A change of amount alone rebases the temperature
+        // but keeps the rate, since one tick is too short to measure it.
+        if (corrected && elapsed > 0)
+          rates[layer] = clampRate((temperature - temperatures[layer]) * (long) TankSyncMessage.RATE_SCALE / elapsed);
+        buf.writeVarInt(layer);
+        buf.writeVarInt(amount);
+        TankSyncMessage.writeZigZag(buf, temperature - temperatures[layer]);
+        TankSyncMessage.writeZigZag(buf, rates[layer]);
+        amounts[layer] = amount;
+        temperatures[layer] = temperature;
+        times[layer] = now;
+      }
+    }
+    watchMoving(entry, sent, now);
+  }
+
+  private static void writeLayers(PacketBuffer buf, FractionalTank tank, int i, Sent sent, long now) {
+    int target = targetOf(tank, i);
+    int layers = tank.layers(i);
+    int[] fluids = new int[layers];
+    int[] amounts = new int[layers];
+    int[] temperatures = new int[layers];
+    int[] rates = new int[layers];
+    long[] times = new long[layers];
+    TankSyncMessage.writeZigZag(buf, target);
+    buf.writeVarInt(layers);
+    for (int layer = 0; layer < layers; layer++) {
+      fluids[layer] = tank.layerFluidId(i, layer);
+      amounts[layer] = tank.layerAmount(i, layer);
+      temperatures[layer] = tank.layerTemperature(i, layer);
+      rates[layer] = previousRate(sent, i, fluids[layer]);
+      times[layer] = now;
+      buf.writeRegistryIdUnsafe(ForgeRegistries.FLUIDS, tank.layerFluid(i, layer));
+      buf.writeVarInt(amounts[layer]);
+      TankSyncMessage.writeZigZag(buf, temperatures[layer]);
+      TankSyncMessage.writeZigZag(buf, rates[layer]);
+    }
+    sent.targets[i] = target;
+    sent.fluids[i] = fluids;
+    sent.amounts[i] = amounts;
+    sent.temperatures[i] = temperatures;
+    sent.rates[i] = rates;
+    sent.times[i] = times;
+  }
+
+  /**
+   * @return The rate last sent for the fluid's layer, which stays a fair guess when other layers come and go
+   */
+  private static int previousRate(Sent sent, int i, int fluid) {
+    int[] fluids = sent.fluids[i];
+    if (fluids == null)
+      return 0;
+    for (int layer = 0; layer < fluids.length; layer++)
+      if (fluids[layer] == fluid)
+        return sent.rates[i][layer];
+    return 0;
+  }
+
+  private static int targetOf(FractionalTank tank, int i) {
+    return tank instanceof ThermalTank ? ((ThermalTank) tank).targetTemperature(i) : 0;
+  }
+
+  private static int clampRate(long rate) {
+    return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, rate));
+  }
+
+  private static boolean sameFluids(FractionalTank tank, int i, Sent sent) {
+    int[] fluids = sent.fluids[i];
+    if (fluids.length != tank.layers(i))
+      return false;
+    for (int layer = 0; layer < fluids.length; layer++)
+      if (fluids[layer] != tank.layerFluidId(i, layer))
+        return false;
+    return true;
+  }
+
+  private static int updates(FractionalTank tank, int i, Sent sent, long now, int tolerance) {
+    int target = targetOf(tank, i);
+    int[] amounts = sent.amounts[i];
+    int[] temperatures = sent.temperatures[i];
+    int[] rates = sent.rates[i];
+    long[] times = sent.times[i];
+    int updates = 0;
+    for (int layer = 0; layer < amounts.length; layer++) {
+      int predicted = TankSyncMessage.extrapolate(temperatures[layer], rates[layer], target, now - times[layer]);
+      if (tank.layerAmount(i, layer) != amounts[layer]
+          || Math.abs(tank.layerTemperature(i, layer) - predicted) >= tolerance)
+        updates++;
+    }
+    return updates;
+  }
+
+  /**
+   * Keeps checking the holder every tick while the player's copy of any of its temperatures is still on the move.
+   */
+  private void watchMoving(Tracked entry, Sent sent, long now) {
+    for (int i = 0; i < sent.rates.length; i++) {
+      int[] rates = sent.rates[i];
+      for (int layer = 0; layer < rates.length; layer++) {
+        if (rates[layer] == 0)
+          continue;
+        int predicted = TankSyncMessage.extrapolate(sent.temperatures[i][layer], rates[layer], sent.targets[i],
+            now - sent.times[i][layer]);
+        if (predicted != sent.targets[i]) {
+          moving.add(entry);
+          return;
+        }
+      }
+    }
+  }
+
+  private class Tracked implements TankListener {
+    private final BlockPos pos;
+    private final long chunk;
+    private final FractionalTank tank;
+    private boolean dirty = false;
+
+    private Tracked(BlockPos pos, FractionalTank tank) {
+      this.pos = pos;
+      this.chunk = ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+      this.tank = tank;
+    }
+
+    @Override
+    public void tankChanged(FractionalTank source, int tank, long layers) {
+      if (dirty)
+        return;
+      dirty = true;
+      changedChunks.add(chunk);
+    }
+  }
+
+  /**
+   * What one player was last sent for one holder, per tank and layer.
+   */
+  private static final class Sent {
+    private final int[] targets;
+    private final int[][] fluids;
+    private final int[][] amounts;
+    // Each temperature as sent, with its rate and the game time it was sent at.
+    private final int[][] temperatures;
+    private final int[][] rates;
+    private final long[][] times;
+
+    private Sent(int tanks) {
+      targets = new int[tanks];
+      fluids = new int[tanks][];
+      amounts = new int[tanks][];
+      temperatures = new int[tanks][];
+      rates = new int[tanks][];
+      times = new long[tanks][];
+    }
+  }
+
+  private static final class Viewer {
+    private final UUID id;
+    private final HashSet<Long> watched = new HashSet<>();
+    // Chunks with something to send, in the order they first needed it.
+    private final LinkedHashSet<Long> pending = new LinkedHashSet<>();
+    private final HashSet<Long> resets = new HashSet<>();
+    private final HashMap<Long, ArrayList<BlockPos>> removals = new HashMap<>();
+    private final IdentityHashMap<Tracked, Sent> sent = new IdentityHashMap<>();
+
+    private Viewer(UUID id) {
+      this.id = id;
+    }
+
+    private void forget(long chunk) {
+      pending.remove(chunk);
+      resets.remove(chunk);
+      removals.remove(chunk);
+    }
+  }
+}
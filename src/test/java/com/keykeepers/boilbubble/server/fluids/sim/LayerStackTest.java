@@ -0,0 +1,259 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LayerStackTest {
+  // Fluid 0 is light, fluid 1 a little heavier; solute 0 is far heavier than either.
+  private static final TestFluids SOLUTION = new TestFluids(new int[] {1000, 1200}, new int[] {5000});
+
+  @Test
+  public void layersAreOrderedHeaviestFirst() {
+    LayerStack stack = new LayerStack(TestFluids.spread(8), 8000);
+    for (int fluid : new int[] {5, 2, 7, 0, 3, 6, 1, 4})
+      stack.fill(fluid, 100, true);
+    assertEquals(8, stack.layers());
+    for (int layer = 0; layer < 8; layer++)
+      assertEquals(layer, stack.fluid(layer));
+  }
+
+  @Test
+  public void equalDensitiesAreOrderedById() {
+    LayerStack stack = new LayerStack(new TestFluids(new int[] {1000, 1000, 1000}, new int[0]), 1000);
+    stack.fill(2, 10, true);
+    stack.fill(0, 10, true);
+    stack.fill(1, 10, true);
+    assertEquals(0, stack.fluid(0));
+    assertEquals(1, stack.fluid(1));
+    assertEquals(2, stack.fluid(2));
+  }
+
+  @Test
+  public void drainingALayerAwayRemovesIt() {
+    LayerStack stack = new LayerStack(TestFluids.spread(3), 1000);
+    Recorder recorder = new Recorder();
+    stack.observe(recorder);
+    for (int fluid = 0; fluid < 3; fluid++)
+      stack.fill(fluid, 100, true);
+    assertEquals(100, stack.drain(1, 500, true));
+    assertEquals(2, stack.layers());
+    assertEquals(0, stack.fluid(0));
+    assertEquals(2, stack.fluid(1));
+    assertEquals(200, stack.total());
+    assertEquals("removed 1", recorder.events.get(recorder.events.size() - 1));
+  }
+
+  @Test
+  public void heavySolutesSinkALayerAndDilutingRaisesItAgain() {
+    LayerStack stack = new LayerStack(SOLUTION, 10000);
+    Recorder recorder = new Recorder();
+    stack.observe(recorder);
+    stack.fill(1, 1000, true);
+    Solutes dissolved = new Solutes();
+    dissolved.add(0, 100);
+    stack.fill(0, 100, dissolved, true);
+    // Half solute by volume: (1000 * 100 + 5000 * 100) / 200.
+    assertEquals(3000, stack.density(0));
+    assertEquals(0, stack.fluid(0));
+    assertEquals(1, stack.fluid(1));
+    assertTrue(recorder.events.contains("moved 1 0"));
+
+    stack.fill(0, 1000, true);
+    assertEquals(0, stack.fluid(0));
+    stack.fill(0, 2000, true);
+    // (1000 * 3100 + 5000 * 100) / 3200, now lighter than fluid 1.
+    assertEquals(1125, stack.density(1));
+    assertEquals(1, stack.fluid(0));
+    assertEquals(0, stack.fluid(1));
+    assertEquals("moved 0 1", recorder.events.get(recorder.events.size() - 1));
+    assertEquals(100, stack.solutes(1).amountOf(0));
+  }
+
+  @Test
+  public void convertingWorksOutTheDensityAfresh() {
+    int[] densities = {1000, 1200, 500};
+    LayerStack stack = new LayerStack(new TestFluids(densities, new int[] {5000}), 110);
+    stack.fill(1, 100, true);
+    Solutes offered = new Solutes();
+    offered.add(0, 1);
+    // Only 10 of the 20 mB offered fits, too little to take any of the solute, which leaves the layer an empty vector.
+    assertEquals(10, stack.fill(0, 20, offered, true));
+    assertTrue(stack.solutes(stack.indexOf(0)).isEmpty());
+    // As after a data reload that makes fluid 0 heavier than fluid 1, which the layer has not yet caught up with.
+    densities[0] = 2000;
+    assertEquals(1, stack.fluid(0));
+    assertEquals(5, stack.convert(0, 2, 5));
+    assertEquals(2000, stack.density(stack.indexOf(0)));
+    assertEquals(0, stack.fluid(0));
+    assertEquals(1, stack.fluid(1));
+    assertEquals(2, stack.fluid(2));
+  }
+
+  @Test
+  public void fillAndDrainCarrySolutesInProportion() {
+    LayerStack stack = new LayerStack(SOLUTION, 1000);
+    stack.fill(1, 700, true);
+    Solutes offered = new Solutes();
+    offered.add(0, 99);
+    // Only 300 of the 900 offered fits, so a third of the solute goes in and the rest stays with the offer.
+    assertEquals(300, stack.fill(0, 900, offered, true));
+    int layer = stack.indexOf(0);
+    assertEquals(33, stack.solutes(layer).amountOf(0));
+    assertEquals(66, offered.amountOf(0));
+
+    Solutes drained = new Solutes();
+    Random random = new Random(3);
+    while (stack.amountOf(0) > 0)
+      stack.drain(0, 1 + random.nextInt(40), drained, true);
+    assertEquals(33, drained.amountOf(0));
+  }
+
+  @Test
+  public void sharesOfANearlyFullStackFitAndLoseNothing() {
+    Random random = new Random(4);
+    for (int trial = 0; trial < 200; trial++) {
+      int whole = 1000 + random.nextInt(32000);
+      LayerStack stack = new LayerStack(TestFluids.spread(16), whole);
+      int layers = 1 + random.nextInt(16);
+      int free = random.nextInt(Math.min(layers * 2, whole / 2));
+      for (int fluid = 0; fluid < layers; fluid++)
+        stack.fill(fluid, (whole - free) / layers + (fluid < (whole - free) % layers ? 1 : 0), true);
+      int[] before = amounts(stack, 16);
+      int[] shares = new int[stack.layers()];
+
+      // Split members off one at a time, as a pool does when its structure comes apart.
+      List<LayerStack> parts = new ArrayList<>();
+      while (whole > 1) {
+        int part = 1 + random.nextInt(whole - 1);
+        stack.shares(part, whole, shares);
+        int[] fluids = new int[stack.layers()];
+        for (int layer = 0; layer < fluids.length; layer++) {
+          fluids[layer] = stack.fluid(layer);
+          assertTrue(shares[layer] <= stack.amount(layer));
+        }
+        LayerStack split = new LayerStack(stack.properties(), part);
+        for (int k = 0; k < fluids.length; k++) {
+          assertEquals(shares[k], stack.drain(fluids[k], shares[k], true));
+          assertEquals(shares[k], split.fill(fluids[k], shares[k], true));
+        }
+        parts.add(split);
+        whole -= part;
+        stack = rebuilt(stack, whole);
+        shares = new int[stack.layers()];
+      }
+      parts.add(stack);
+
+      int[] after = new int[16];
+      for (LayerStack part : parts) {
+        int[] amounts = amounts(part, 16);
+        for (int fluid = 0; fluid < 16; fluid++)
+          after[fluid] += amounts[fluid];
+      }
+      for (int fluid = 0; fluid < 16; fluid++)
+        assertEquals(before[fluid], after[fluid]);
+    }
+  }
+
+  @Test
+  public void slicesOfAFullStackFitEveryPart() {
+    LayerStack stack = new LayerStack(TestFluids.spread(2), 2000);
+    stack.fill(0, 999, true);
+    stack.fill(1, 1001, true);
+    int[][] slices = stack.slices(new int[] {1000, 1000});
+    // Cut on its own, each member's share of the second layer would round to 501 and the second member would get
+    // 1001 mB.
+    assertEquals(1000, slices[1][0] - slices[0][0] + slices[1][1] - slices[0][1]);
+    assertEquals(1000, slices[2][0] - slices[1][0] + slices[2][1] - slices[1][1]);
+    assertEquals(999, slices[2][0]);
+    assertEquals(1001, slices[2][1]);
+  }
+
+  @Test
+  public void aFullPoolSavedAMemberAtATimeLoadsBackAsItWas() {
+    Random random = new Random(5);
+    for (int trial = 0; trial < 200; trial++) {
+      int members = 1 + random.nextInt(40);
+      int[] parts = new int[members];
+      int whole = 0;
+      for (int i = 0; i < members; i++) {
+        parts[i] = 1 + random.nextInt(4000);
+        whole += parts[i];
+      }
+      LayerStack pool = new LayerStack(TestFluids.spread(16), whole);
+      int layers = 1 + random.nextInt(16);
+      for (int fluid = 0; fluid < layers; fluid++)
+        pool.fill(fluid, whole / layers + (fluid < whole % layers ? 1 : 0), true);
+      assertEquals(whole, pool.total());
+
+      // Save each member's slice as a stack of its own capacity, then load them all into a pool of the same size.
+      int[][] slices = pool.slices(parts);
+      LayerStack loaded = new LayerStack(pool.properties(), whole);
+      for (int i = 0; i < members; i++) {
+        LayerStack member = new LayerStack(pool.properties(), parts[i]);
+        for (int layer = 0; layer < pool.layers(); layer++) {
+          int slice = slices[i + 1][layer] - slices[i][layer];
+          assertEquals(slice, member.fill(pool.fluid(layer), slice, true));
+        }
+        for (int layer = 0; layer < member.layers(); layer++)
+          assertEquals(member.amount(layer), loaded.fill(member.fluid(layer), member.amount(layer), true));
+      }
+      assertEquals(pool.layers(), loaded.layers());
+      for (int layer = 0; layer < pool.layers(); layer++) {
+        assertEquals(pool.fluid(layer), loaded.fluid(layer));
+        assertEquals(pool.amount(layer), loaded.amount(layer));
+        assertEquals(pool.amount(layer), slices[members][layer]);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void slicesRefusePartsThatDoNotMakeUpTheCapacity() {
+    new LayerStack(TestFluids.spread(1), 100).slices(new int[] {40, 50});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void sharesRefuseAPartLargerThanTheWhole() {
+    new LayerStack(TestFluids.spread(1), 100).shares(101, 100, new int[0]);
+  }
+
+  /**
+   * @return What is left of a stack moved into one of a smaller capacity, failing if any of it does not fit
+   */
+  private static LayerStack rebuilt(LayerStack stack, int capacity) {
+    LayerStack rebuilt = new LayerStack(stack.properties(), capacity);
+    for (int layer = 0; layer < stack.layers(); layer++)
+      assertEquals(stack.amount(layer), rebuilt.fill(stack.fluid(layer), stack.amount(layer), true));
+    return rebuilt;
+  }
+
+  private static int[] amounts(LayerStack stack, int fluids) {
+    int[] amounts = new int[fluids];
+    for (int fluid = 0; fluid < fluids; fluid++)
+      amounts[fluid] = stack.amountOf(fluid);
+    return amounts;
+  }
+
+  private static class Recorder implements LayerStack.Observer {
+    final List<String> events = new ArrayList<>();
+
+    @Override
+    public void inserted(int layer) { events.add("inserted " + layer); }
+
+    @Override
+    public void removed(int layer) { events.add("removed " + layer); }
+
+    @Override
+    public void resized(int layer, int oldAmount, int newAmount) {
+      events.add("resized " + layer + " " + oldAmount + " " + newAmount);
+    }
+
+    @Override
+    public void moved(int from, int to) { events.add("moved " + from + " " + to); }
+  }
+}
@@ -0,0 +1,113 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SolutesTest {
+  @Test
+  public void addKeepsIdsSortedAndDropsEmptied() {
+    Solutes solutes = new Solutes();
+    solutes.add(7, 30);
+    solutes.add(2, 10);
+    solutes.add(5, 20);
+    solutes.add(2, -10);
+    assertEquals(2, solutes.size());
+    assertEquals(5, solutes.id(0));
+    assertEquals(7, solutes.id(1));
+    assertEquals(0, solutes.amountOf(2));
+    assertEquals(50, solutes.total());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void addRefusesToTakeMoreThanIsPresent() {
+    Solutes solutes = new Solutes();
+    solutes.add(3, 10);
+    solutes.add(3, -11);
+  }
+
+  @Test
+  public void splitConservesEverySolute() {
+    Random random = new Random(1);
+    for (int trial = 0; trial < 1000; trial++) {
+      Solutes source = randomSolutes(random);
+      Solutes before = new Solutes();
+      before.copyFrom(source);
+      int whole = 1 + random.nextInt(16000);
+      int part = random.nextInt(whole + 1);
+      Solutes taken = new Solutes();
+      source.split(part, whole, taken);
+      for (int i = 0; i < before.size(); i++) {
+        int id = before.id(i);
+        long amount = before.amount(i);
+        assertEquals(amount, source.amountOf(id) + taken.amountOf(id));
+        // Shares round down, so the part never takes more than its proportion.
+        assertTrue(taken.amountOf(id) * whole <= amount * part);
+      }
+      assertEquals(before.total(), source.total() + taken.total());
+    }
+  }
+
+  @Test
+  public void splitTakingTheWholeTakesEverything() {
+    Solutes source = new Solutes();
+    source.add(1, 999);
+    source.add(4, 1);
+    Solutes taken = new Solutes();
+    source.split(250, 250, taken);
+    assertTrue(source.isEmpty());
+    assertEquals(999, taken.amountOf(1));
+    assertEquals(1, taken.amountOf(4));
+  }
+
+  @Test
+  public void repeatedSplitsLoseNothing() {
+    Solutes source = new Solutes();
+    source.add(0, 1000);
+    source.add(3, 7);
+    source.add(9, Long.MAX_VALUE / 4);
+    long total = source.total();
+    Solutes taken = new Solutes();
+    // Take a third of what is left again and again, as a tank drained in small steps would.
+    for (int whole = 3000; whole > 0; whole -= Math.max(1, whole / 3))
+      source.split(Math.max(1, whole / 3), whole, taken);
+    assertEquals(total, source.total() + taken.total());
+  }
+
+  @Test
+  public void shareMatchesSplitAndLeavesTheSourceAlone() {
+    Random random = new Random(2);
+    for (int trial = 0; trial < 1000; trial++) {
+      Solutes source = randomSolutes(random);
+      int whole = 1 + random.nextInt(16000);
+      int part = random.nextInt(whole + 1);
+      Solutes shared = new Solutes();
+      source.share(part, whole, shared);
+      long total = source.total();
+      Solutes taken = new Solutes();
+      source.split(part, whole, taken);
+      assertEquals(total, source.total() + shared.total());
+      assertEquals(taken.size(), shared.size());
+      for (int i = 0; i < taken.size(); i++) {
+        assertEquals(taken.id(i), shared.id(i));
+        assertEquals(taken.amount(i), shared.amount(i));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void splitRefusesMoreThanTheWhole() {
+    new Solutes().split(11, 10, null);
+  }
+
+  private static Solutes randomSolutes(Random random) {
+    Solutes solutes = new Solutes();
+    int count = random.nextInt(6);
+    for (int i = 0; i < count; i++)
+      solutes.add(random.nextInt(32), 1 + (random.nextBoolean() ? random.nextInt(100) : random.nextInt(1 << 30)));
+    return solutes;
+  }
+}
@@ -0,0 +1,81 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+import java.util.Arrays;
+
+/**
+ * A plain property table for tests: fluid and solute densities come from the arrays given, and every fluid starts at
+ * its own temperature and conducts heat alike. Fluids never change phase unless set up to boil with {@link #boils}.
+ */
+final class TestFluids implements FluidProperties {
+  private final int[] densities;
+  private final int[] soluteDensities;
+  private final int[] boilingPoints;
+  private final int[] boilsInto;
+  private final float[] boilingHeats;
+
+  TestFluids(int[] densities, int[] soluteDensities) {
+    this.densities = densities;
+    this.soluteDensities = soluteDensities;
+    boilingPoints = new int[densities.length];
+    boilsInto = new int[densities.length];
+    boilingHeats = new float[densities.length];
+    Arrays.fill(boilingPoints, Integer.MAX_VALUE);
+    Arrays.fill(boilsInto, -1);
+  }
+
+  /**
+   * Has one fluid boil into another at the given point, taking in the given heat per mB.
+   */
+  TestFluids boils(int fluid, int into, int point, float heat) {
+    boilsInto[fluid] = into;
+    boilingPoints[fluid] = point;
+    boilingHeats[fluid] = heat;
+    return this;
+  }
+
+  /**
+   * @return A table of the given number of fluids, each lighter than the one before, and no solutes
+   */
+  static TestFluids spread(int count) {
+    int[] densities = new int[count];
+    for (int i = 0; i < count; i++)
+      densities[i] = 3000 - i * 150;
+    return new TestFluids(densities, new int[0]);
+  }
+
+  @Override
+  public int density(int fluid) { return densities[fluid]; }
+
+  @Override
+  public int temperature(int fluid) { return 280 + fluid * 10; }
+
+  @Override
+  public float conductivity(int fluid) { return 1.0f; }
+
+  @Override
+  public float specificHeat(int fluid) { return 1.0f; }
+
+  @Override
+  public int boilingPoint(int fluid) { return boilingPoints[fluid]; }
+
+  @Override
+  public int freezingPoint(int fluid) { return Integer.MIN_VALUE; }
+
+  @Override
+  public int boilsInto(int fluid) { return boilsInto[fluid]; }
+
+  @Override
+  public int freezesInto(int fluid) { return -1; }
+
+  @Override
+  public float boilingHeat(int fluid) { return boilingHeats[fluid]; }
+
+  @Override
+  public float freezingHeat(int fluid) { return 0; }
+
+  @Override
+  public int soluteDensity(int solute) { return soluteDensities[solute]; }
+
+  @Override
+  public int generation() { return 0; }
+}
@@ -0,0 +1,123 @@
+package com.keykeepers.boilbubble.server.fluids.sim;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThermalKernelTest {
+  private static final int CAPACITY = 16000;
+
+  @Test
+  public void shortGapsAreSteppedExactly() {
+    ThermalKernel stepped = kernel(4);
+    ThermalKernel forwarded = kernel(4);
+    for (int t = 0; t < ThermalKernel.FAST_FORWARD_MIN_TICKS; t++)
+      stepped.step(1);
+    forwarded.fastForward(ThermalKernel.FAST_FORWARD_MIN_TICKS);
+    assertEquals(stepped.shellEnergy(), forwarded.shellEnergy());
+    for (int layer = 0; layer < 4; layer++)
+      assertEquals(stepped.energy(layer), forwarded.energy(layer));
+  }
+
+  @Test
+  public void fastForwardStaysWithinADegreeOfStepping() {
+    // The closed form leaves out the rounding and the minimum one-unit transfers of a real tick, which is worth up to
+    // a degree either way at any gap.
+    for (int layers : new int[] {1, 4, 16})
+      for (int ticks : new int[] {ThermalKernel.FAST_FORWARD_MIN_TICKS + 1, 100, 1000, 5000, 50000})
+        assertFastForwardMatches(layers, ticks, 1);
+  }
+
+  @Test
+  public void fastForwardBoilsAsSteppingDoes() {
+    // Stopping while the water boils, and long after it has boiled away and the closed form has taken over again.
+    for (int ticks : new int[] {180, 2000}) {
+      ThermalKernel stepped = boilingKernel();
+      ThermalKernel forwarded = boilingKernel();
+      ThermalKernel.PhaseConverter steppedConverter = converter(stepped);
+      for (int t = 0; t < ticks; t++) {
+        stepped.step(1);
+        if (stepped.phaseChangePending())
+          stepped.changePhases(steppedConverter);
+      }
+      forwarded.fastForward(ticks, converter(forwarded));
+
+      LayerStack stack = forwarded.stack();
+      assertTrue("Some water boils", stack.amountOf(1) > 0);
+      assertEquals(stepped.stack().amountOf(0), stack.amountOf(0));
+      assertEquals(stepped.stack().amountOf(1), stack.amountOf(1));
+      int water = stack.indexOf(0);
+      if (water >= 0)
+        assertTrue("Water holds at its boiling point", forwarded.temperature(water) <= 373);
+      assertEquals("Shell", stepped.shellTemperature(), forwarded.shellTemperature(), 1);
+      for (int layer = 0; layer < stack.layers(); layer++)
+        assertEquals("Layer " + layer, stepped.temperature(layer), forwarded.temperature(layer), 1);
+    }
+  }
+
+  @Test
+  public void fastForwardWithoutAConverterHoldsAtTheBoilingPoint() {
+    ThermalKernel kernel = boilingKernel();
+    kernel.fastForward(2000);
+    assertEquals(373, kernel.temperature(kernel.stack().indexOf(0)));
+    assertTrue(kernel.phaseChangePending());
+    assertTrue(kernel.changePhases(converter(kernel)));
+    assertTrue(kernel.stack().amountOf(1) > 0);
+  }
+
+  @Test
+  public void aSettledKernelGoesDormant() {
+    ThermalKernel kernel = kernel(2);
+    kernel.fastForward(1000000);
+    for (int t = 0; t < 1000 && !kernel.isDormant(); t++)
+      kernel.step(1);
+    assertTrue(kernel.isDormant());
+    assertEquals(400, kernel.shellTemperature());
+    assertTrue(kernel.targetTemperature(300));
+    assertTrue(!kernel.isDormant());
+  }
+
+  private static void assertFastForwardMatches(int layers, int ticks, int tolerance) {
+    ThermalKernel stepped = kernel(layers);
+    ThermalKernel forwarded = kernel(layers);
+    for (int t = 0; t < ticks; t++)
+      stepped.step(1);
+    forwarded.fastForward(ticks);
+    String gap = layers + " layers over " + ticks + " ticks";
+    assertEquals("Shell, " + gap, stepped.shellTemperature(), forwarded.shellTemperature(), tolerance);
+    for (int layer = 0; layer < layers; layer++)
+      assertEquals("Layer " + layer + ", " + gap, stepped.temperature(layer), forwarded.temperature(layer),
+          tolerance);
+  }
+
+  /**
+   * @return A small tank of water, which boils into steam at 373K, heated toward 500K
+   */
+  private static ThermalKernel boilingKernel() {
+    LayerStack stack = new LayerStack(new TestFluids(new int[] {1000, 1}, new int[0]).boils(0, 1, 373, 10), 1000);
+    ThermalKernel kernel = new ThermalKernel(stack, 5);
+    stack.observe(kernel);
+    stack.fill(0, 500, true);
+    kernel.targetTemperature(500);
+    return kernel;
+  }
+
+  private static ThermalKernel.PhaseConverter converter(ThermalKernel kernel) {
+    return (fromFluid, intoFluid, amount) -> kernel.stack().convert(fromFluid, intoFluid, amount);
+  }
+
+  /**
+   * @return A kernel over the given number of layers, split evenly across the capacity and heated toward 400K, as in
+   * the benchmarks
+   */
+  private static ThermalKernel kernel(int layers) {
+    LayerStack stack = new LayerStack(TestFluids.spread(layers), CAPACITY);
+    ThermalKernel kernel = new ThermalKernel(stack, 5);
+    stack.observe(kernel);
+    for (int fluid = 0; fluid < layers; fluid++)
+      stack.fill(fluid, CAPACITY / layers, true);
+    kernel.targetTemperature(400);
+    return kernel;
+  }
+}